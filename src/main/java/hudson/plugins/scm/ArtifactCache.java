@@ -0,0 +1,412 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Agent-local, content-addressed cache of downloaded artifacts.
+ *
+ * Blobs are keyed by the SHA-256 checksum Artifactory reports and are kept under
+ * the node root, so every executor and workspace on an agent shares them. The
+ * cache is bounded by size and evicts the least recently used blobs first. Blobs
+ * handed out by {@link #acquire(String)} are leased and never evicted until they
+ * are released again.
+ */
+public final class ArtifactCache implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The cache directory name below the node root. */
+	static final String CACHE_DIR = "artifactory-scm-cache";
+
+	/** Upper bound of a lease, in case a build dies before releasing a blob. */
+	private static final long LEASE_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+	private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+	/**
+	 * Blobs currently being read, with the number of executors reading each. This
+	 * lives in the agent JVM, where all executors of the node share it, and is
+	 * guarded by {@link #LOCK}.
+	 */
+	private static final Map<String, Lease> LEASES = new HashMap<>();
+
+	/** Serializes leases, commits and evictions of executors inside one agent JVM. */
+	private static final Object LOCK = new Object();
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(ArtifactCache.class.getName());
+
+	/** The cache root on the agent. */
+	private final FilePath root;
+
+	/** The maximum size of all blobs, in bytes. */
+	private final long maxSize;
+
+	/**
+	 * Instantiates a new artifact cache.
+	 *
+	 * @param root
+	 *            the cache root on the agent
+	 * @param maxSize
+	 *            the maximum size of all blobs, in bytes
+	 */
+	public ArtifactCache(FilePath root, long maxSize) {
+		this.root = root;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets the cache of the node a workspace lives on.
+	 *
+	 * @param workspace
+	 *            the workspace
+	 * @param maxSize
+	 *            the maximum size of all blobs, in bytes
+	 * @return the cache
+	 */
+	public static ArtifactCache forWorkspace(FilePath workspace, long maxSize) {
+		FilePath nodeRoot = null;
+		Computer computer = workspace.toComputer();
+		Node node = computer == null ? null : computer.getNode();
+		if (node != null) {
+			nodeRoot = node.getRootPath();
+		}
+		if (nodeRoot == null) {
+			// Offline or unknown node, keep the cache next to the workspace
+			nodeRoot = workspace.getParent() == null ? workspace : workspace.getParent();
+		}
+		return new ArtifactCache(nodeRoot.child(CACHE_DIR), maxSize);
+	}
+
+	/**
+	 * Checks whether a checksum can be used as a cache key.
+	 *
+	 * @param sha256
+	 *            the checksum
+	 * @return true, if it is a well formed SHA-256 hex string
+	 */
+	public static boolean isValidKey(@CheckForNull String sha256) {
+		return sha256 != null && SHA256.matcher(sha256.toLowerCase(Locale.ENGLISH)).matches();
+	}
+
+	public FilePath getRoot() {
+		return root;
+	}
+
+	/**
+	 * Leases a blob if the cache holds it.
+	 *
+	 * @param sha256
+	 *            the checksum of the blob
+	 * @return the blob, or null when it is not cached
+	 */
+	@CheckForNull
+	public FilePath acquire(String sha256) throws IOException, InterruptedException {
+		String key = sha256.toLowerCase(Locale.ENGLISH);
+		if (!root.act(new Acquire(key))) {
+			return null;
+		}
+		return blob(key);
+	}
+
+	/**
+	 * Tells whether the cache holds a blob, without leasing it. The blob may be
+	 * evicted right after.
+	 *
+	 * @param sha256
+	 *            the checksum of the blob
+	 * @return true when the blob is cached
+	 */
+	public boolean contains(String sha256) throws IOException, InterruptedException {
+		return blob(sha256.toLowerCase(Locale.ENGLISH)).exists();
+	}
+
+	/**
+	 * Gives back a blob leased with {@link #acquire(String)} or {@link #store(FilePath, String, boolean)}.
+	 *
+	 * @param sha256
+	 *            the checksum of the blob
+	 */
+	public void release(String sha256) throws IOException, InterruptedException {
+		root.act(new Release(sha256.toLowerCase(Locale.ENGLISH)));
+	}
+
+	/**
+	 * Creates a file to download a blob into before it is stored.
+	 *
+	 * @return the temporary file
+	 */
+	public FilePath createTempFile() throws IOException, InterruptedException {
+		FilePath tmp = root.child("tmp");
+		tmp.mkdirs();
+		return tmp.createTempFile("download", ".part");
+	}
+
+	/**
+	 * Moves a downloaded file into the cache and leases it. Unless the download
+	 * already checked it, the content is checked against the checksum first, so a
+	 * broken transfer never poisons the cache.
+	 *
+	 * @param temp
+	 *            the downloaded file from {@link #createTempFile()}
+	 * @param sha256
+	 *            the expected checksum
+	 * @param verified
+	 *            whether the download checked the SHA-256 checksum on its stream
+	 * @return the cached blob
+	 */
+	public FilePath store(FilePath temp, String sha256, boolean verified) throws IOException, InterruptedException {
+		String key = sha256.toLowerCase(Locale.ENGLISH);
+		root.act(new Store(temp.getRemote(), key, maxSize, verified));
+		return blob(key);
+	}
+
+	private FilePath blob(String key) {
+		return root.child("sha256").child(key);
+	}
+
+	/**
+	 * Adds a reader to a blob. Called holding {@link #LOCK}.
+	 */
+	private static void lease(String key) {
+		Lease lease = LEASES.computeIfAbsent(key, k -> new Lease());
+		lease.count++;
+		lease.until = System.currentTimeMillis() + LEASE_MILLIS;
+	}
+
+	/**
+	 * Removes a reader from a blob, the other readers keep their lease.
+	 */
+	private static void unlease(String key) {
+		synchronized (LOCK) {
+			Lease lease = LEASES.get(key);
+			if (lease != null && --lease.count <= 0) {
+				LEASES.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether any executor still reads a blob. Called holding {@link #LOCK}.
+	 */
+	private static boolean isLeased(String key) {
+		Lease lease = LEASES.get(key);
+		if (lease == null) {
+			return false;
+		}
+		if (lease.until < System.currentTimeMillis()) {
+			// Its readers died without releasing it
+			LEASES.remove(key);
+			return false;
+		}
+		return true;
+	}
+
+	private static String sha256Of(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Runs under the cache lock, which is shared by all executors of this JVM and
+	 * by other agent processes using the same directory.
+	 */
+	private static void locked(File root, IORunnable body) throws IOException {
+		synchronized (LOCK) {
+			root.mkdirs();
+			try (FileChannel channel = FileChannel.open(new File(root, ".lock").toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				 FileLock ignored = channel.lock()) {
+				body.run();
+			}
+		}
+	}
+
+	/**
+	 * Removes the least recently used blobs until the cache fits its size limit.
+	 */
+	private static void evict(File blobs, long maxSize) {
+		File[] files = blobs.listFiles(File::isFile);
+		if (files == null) {
+			return;
+		}
+		long total = 0;
+		for (File f : files) {
+			total += f.length();
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (File f : files) {
+			if (total <= maxSize) {
+				break;
+			}
+			if (isLeased(f.getName())) {
+				continue;
+			}
+			long length = f.length();
+			if (f.delete()) {
+				total -= length;
+				LOGGER.log(FINE, "Evicted {0} from the artifact cache", f.getName());
+			}
+		}
+		if (total > maxSize) {
+			LOGGER.log(WARNING, "Artifact cache {0} is over its limit, remaining blobs are in use", blobs);
+		}
+	}
+
+	private interface IORunnable {
+		void run() throws IOException;
+	}
+
+	/**
+	 * The readers of one blob.
+	 */
+	private static final class Lease {
+
+		private int count;
+
+		/** When the lease expires, pushed back by every new reader. */
+		private long until;
+	}
+
+	/**
+	 * Leases a blob and marks it as recently used.
+	 */
+	private static final class Acquire extends MasterToSlaveFileCallable<Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String key;
+
+		Acquire(String key) {
+			this.key = key;
+		}
+
+		public Boolean invoke(File root, VirtualChannel channel) throws IOException {
+			File blob = new File(new File(root, "sha256"), key);
+			boolean[] found = new boolean[1];
+			// Under the lock evictions hold, so none can remove the blob between the check and the lease
+			locked(root, () -> {
+				if (!blob.isFile()) {
+					return;
+				}
+				lease(key);
+				found[0] = true;
+				// lastModified is the LRU clock
+				if (!blob.setLastModified(System.currentTimeMillis())) {
+					LOGGER.log(FINE, "Unable to touch {0}", blob);
+				}
+			});
+			return found[0];
+		}
+	}
+
+	/**
+	 * Ends the lease of a blob.
+	 */
+	private static final class Release extends MasterToSlaveFileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String key;
+
+		Release(String key) {
+			this.key = key;
+		}
+
+		public Void invoke(File root, VirtualChannel channel) {
+			unlease(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Verifies a downloaded file, renames it into place and evicts old blobs.
+	 */
+	private static final class Store extends MasterToSlaveFileCallable<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String temp;
+
+		private final String key;
+
+		private final long maxSize;
+
+		private final boolean verified;
+
+		Store(String temp, String key, long maxSize, boolean verified) {
+			this.temp = temp;
+			this.key = key;
+			this.maxSize = maxSize;
+			this.verified = verified;
+		}
+
+		public Void invoke(final File root, VirtualChannel channel) throws IOException {
+			final File source = new File(temp);
+			if (!verified) {
+				String actual = sha256Of(source);
+				if (!actual.equals(key)) {
+					Files.deleteIfExists(source.toPath());
+					throw new IOException("Checksum mismatch: expected sha256 " + key + " but downloaded " + actual);
+				}
+			}
+			final File blobs = new File(root, "sha256");
+			locked(root, () -> {
+				blobs.mkdirs();
+				// Another executor may have stored the same blob meanwhile, the content is identical
+				Files.move(source.toPath(), new File(blobs, key).toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				// Leased before the eviction below, which must not pick the new blob
+				lease(key);
+				evict(blobs, maxSize);
+			});
+			return null;
+		}
+	}
+}
@@ -0,0 +1,615 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Downloads an artifact into a file on the node the callable runs on.
+ *
+ * The controller resolves the URL and the request headers (credentials included).
+ * Run through {@code FilePath.act} on an agent, the artifact bytes never cross the
+ * remoting channel or the controller's network interface.
+ *
+ * With more than one segment and a server that accepts byte ranges, the file is
+ * preallocated and fetched over several connections at once, each writing its own
+ * range through positional writes. A failed segment is retried on its own from
+ * the last byte it wrote. The checksum follows the segments in file order while
+ * the later ones still download, reading back each segment as soon as it is
+ * complete.
+ *
+ * Otherwise the checksum is computed on the stream as it is written, so the file
+ * is never read a second time. A mismatch deletes the file and aborts.
+ *
+ * A single connection download is resumable. Bytes go to a partial file kept
+ * under a stable name together with the ETag (or Last-Modified) they came from.
+ * A dropped connection, in this build or in an earlier one, continues from the
+ * partial file's length with {@code Range} and {@code If-Range}, so a changed
+ * artifact starts over instead of being spliced onto old bytes. Only one
+ * download at a time writes a partial file, a concurrent download of the same
+ * artifact on the node goes straight to its own target instead.
+ */
+public class ArtifactDownload extends MasterToSlaveFileCallable<ArtifactDownload.Result> {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** Segments are never smaller than this, small artifacts use fewer connections. */
+	static final long MIN_SEGMENT_SIZE = 8L * 1024 * 1024;
+
+	/** Attempts per segment or resumable transfer before the download fails. */
+	private static final int ATTEMPTS = 6;
+
+	/** Upper bound of the wait between two attempts. */
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(ArtifactDownload.class.getName());
+
+	/** The artifact URL. */
+	private final String url;
+
+	/** The request headers, for example Authorization. */
+	private final HashMap<String, String> headers;
+
+	/** The number of parallel ranged connections. */
+	private final int segments;
+
+	/** The expected checksums. */
+	private final Checksums checksums;
+
+	/** The folder keeping partial downloads between attempts and builds, or null. */
+	private final String partialDir;
+
+	/** The HTTP client settings. */
+	private final ArtifactoryHttpClient.Settings settings;
+
+	/** Whether the bytes count against the controller's bandwidth cap. */
+	private boolean throttled;
+
+	/**
+	 * Instantiates a new artifact download.
+	 *
+	 * @param url
+	 *            the artifact URL
+	 * @param headers
+	 *            the request headers
+	 * @param segments
+	 *            the number of parallel ranged connections
+	 * @param checksums
+	 *            the expected checksums
+	 * @param partialDir
+	 *            the folder keeping partial downloads on the node, or null to not resume
+	 * @param settings
+	 *            the HTTP client settings
+	 */
+	public ArtifactDownload(String url, Map<String, String> headers, int segments, Checksums checksums,
+			@CheckForNull String partialDir, ArtifactoryHttpClient.Settings settings) {
+		this.url = url;
+		this.headers = new HashMap<>(headers);
+		this.segments = segments;
+		this.checksums = checksums;
+		this.partialDir = partialDir;
+		this.settings = settings;
+	}
+
+	/**
+	 * Caps the download to the controller's bandwidth, for downloads running on
+	 * the controller.
+	 *
+	 * @return this download
+	 */
+	public ArtifactDownload throttled() {
+		this.throttled = true;
+		return this;
+	}
+
+	public Result invoke(File target, VirtualChannel channel) throws IOException, InterruptedException {
+		if (segments > 1) {
+			HttpResponse<Void> head = ArtifactoryHttpClient.head(settings, url, headers);
+			ArtifactoryHttpClient.check(head, HttpURLConnection.HTTP_OK);
+			long length = head.headers().firstValueAsLong("Content-Length").orElse(-1);
+			String ranges = head.headers().firstValue("Accept-Ranges").orElse(null);
+			String etag = head.headers().firstValue("ETag").orElse(null);
+			int count = (int) Math.min(segments, length / MIN_SEGMENT_SIZE);
+			if (count > 1 && "bytes".equalsIgnoreCase(ranges)) {
+				long bytes = segmented(target, length, count, etag);
+				return new Result(bytes, 0, !checksums.isEmpty());
+			}
+			LOGGER.log(FINE, "{0} is not fetched in segments, length {1}, Accept-Ranges {2}",
+					new Object[] {url, length, ranges});
+		}
+		if (partialDir == null) {
+			return direct(target);
+		}
+		File dir = new File(partialDir);
+		dir.mkdirs();
+		String key = partialKey();
+		try (PartialLock lock = PartialLock.tryLock(new File(dir, key + ".lock"))) {
+			if (lock == null) {
+				// Another download on this node writes the partial file, this one neither waits nor touches it
+				LOGGER.log(FINE, "{0} is already being downloaded here, not resuming", url);
+				return direct(target);
+			}
+			return resumable(target, new File(dir, key + ".part"), new File(dir, key + ".validator"));
+		}
+	}
+
+	/**
+	 * Tells whether the download needs a file on this side: it may fetch
+	 * segments, or an earlier attempt left a partial file to resume.
+	 *
+	 * @return false when {@link #streamTo} would do the same transfer
+	 */
+	public boolean needsLocalFile() throws IOException {
+		return segments > 1 || partialDir != null && new File(partialDir, partialKey() + ".part").isFile();
+	}
+
+	/**
+	 * Downloads over a single connection into a file on another node, without a
+	 * copy on this side. Nothing is left to resume if the connection drops.
+	 *
+	 * @param target
+	 *            the file on the node
+	 * @return the outcome of the download
+	 */
+	public Result streamTo(FilePath target) throws IOException, InterruptedException {
+		HttpResponse<InputStream> response = get(null);
+		Checksums.Verifier verifier = checksums.newVerifier();
+		long bytes;
+		try (CountingInputStream in = new CountingInputStream(body(response))) {
+			ArtifactoryHttpClient.check(response, HttpURLConnection.HTTP_OK);
+			target.copyFrom(verifier != null ? verifier.wrap(in) : in);
+			bytes = in.getByteCount();
+		}
+		if (verifier != null) {
+			try {
+				verifier.verify(url);
+			} catch (Checksums.MismatchException e) {
+				target.delete();
+				throw e;
+			}
+		}
+		return new Result(bytes, 0, verifier != null);
+	}
+
+	/**
+	 * The name of the partial file, the checksum or else a hash of the URL.
+	 */
+	private String partialKey() throws IOException {
+		String sha256 = checksums.getSha256();
+		return sha256 != null ? sha256 : hex(digest("SHA-256", url.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Downloads over a single connection straight into the target file.
+	 */
+	private Result direct(File target) throws IOException, InterruptedException {
+		HttpResponse<InputStream> response = get(null);
+		Checksums.Verifier verifier = checksums.newVerifier();
+		long bytes;
+		try (InputStream in = body(response)) {
+			ArtifactoryHttpClient.check(response, HttpURLConnection.HTTP_OK);
+			bytes = Files.copy(verifier != null ? verifier.wrap(in) : in, target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (verifier != null) {
+			try {
+				verifier.verify(url);
+			} catch (Checksums.MismatchException e) {
+				Files.deleteIfExists(target.toPath());
+				throw e;
+			}
+		}
+		return new Result(bytes, 0, verifier != null);
+	}
+
+	/**
+	 * Downloads over a single connection into a partial file, continuing where an
+	 * earlier attempt stopped. The caller holds the partial file's lock.
+	 */
+	private Result resumable(File target, File part, File validator) throws IOException, InterruptedException {
+		long resumed = 0;
+		for (int attempt = 1; ; attempt++) {
+			long offset = part.isFile() && validator.isFile() ? part.length() : 0;
+			try {
+				Map<String, String> range = new HashMap<>();
+				if (offset > 0) {
+					range.put("Range", "bytes=" + offset + "-");
+					range.put("If-Range", new String(Files.readAllBytes(validator.toPath()), StandardCharsets.UTF_8));
+				}
+				HttpResponse<InputStream> response = get(range);
+				int code = response.statusCode();
+				boolean append;
+				if (code == HttpURLConnection.HTTP_PARTIAL) {
+					append = true;
+					resumed = Math.max(resumed, offset);
+				} else if (code == HttpURLConnection.HTTP_OK) {
+					// First attempt, or the artifact changed since the partial file was written
+					append = false;
+					String value = response.headers().firstValue("ETag")
+							.orElse(response.headers().firstValue("Last-Modified").orElse(null));
+					if (value != null) {
+						Files.write(validator.toPath(), value.getBytes(StandardCharsets.UTF_8));
+					} else {
+						Files.deleteIfExists(validator.toPath());
+					}
+				} else if (code == 416) {
+					// Nothing left to fetch for this offset, the partial file is unusable
+					Files.deleteIfExists(part.toPath());
+					Files.deleteIfExists(validator.toPath());
+					response.body().close();
+					throw new IOException("Range " + offset + "- of " + url + " is not satisfiable");
+				} else {
+					response.body().close();
+					throw new AbortException("Server answered " + code + " for " + url);
+				}
+				Checksums.Verifier verifier = checksums.newVerifier();
+				if (verifier != null && append) {
+					// The digest cannot be saved between attempts, only the bytes kept from before are read again
+					hashPrefix(part, offset, verifier);
+				}
+				try (InputStream in = body(response);
+					 FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+							 StandardOpenOption.WRITE, append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+					byte[] buffer = new byte[64 * 1024];
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						if (verifier != null) {
+							verifier.update(buffer, 0, n);
+						}
+						ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+						while (chunk.hasRemaining()) {
+							out.write(chunk);
+						}
+					}
+				}
+				if (verifier != null) {
+					try {
+						verifier.verify(url);
+					} catch (Checksums.MismatchException e) {
+						Files.deleteIfExists(part.toPath());
+						Files.deleteIfExists(validator.toPath());
+						throw e;
+					}
+				}
+				long length = part.length();
+				Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				Files.deleteIfExists(validator.toPath());
+				return new Result(length, resumed, verifier != null);
+			} catch (AbortException | Checksums.MismatchException e) {
+				throw e;
+			} catch (IOException e) {
+				if (attempt >= ATTEMPTS) {
+					throw e;
+				}
+				LOGGER.log(WARNING, "Resuming {0} at byte {1} after: {2}",
+						new Object[] {url, part.length(), e.getMessage()});
+				Thread.sleep(backoff(attempt));
+			}
+		}
+	}
+
+	/**
+	 * The exclusive right to write one partial file, against the other executors
+	 * of this JVM and other processes sharing the folder.
+	 */
+	private static final class PartialLock implements AutoCloseable {
+
+		/** The lock files held in this JVM, where a second file lock would fail rather than wait. */
+		private static final Set<String> HELD = ConcurrentHashMap.newKeySet();
+
+		private final String path;
+
+		private final FileChannel channel;
+
+		private final FileLock lock;
+
+		private PartialLock(String path, FileChannel channel, FileLock lock) {
+			this.path = path;
+			this.channel = channel;
+			this.lock = lock;
+		}
+
+		/**
+		 * Takes the lock if nobody holds it.
+		 *
+		 * @return the lock, or null when another download holds it
+		 */
+		@CheckForNull
+		static PartialLock tryLock(File file) throws IOException {
+			String path = file.getAbsolutePath();
+			if (!HELD.add(path)) {
+				return null;
+			}
+			FileChannel channel = null;
+			try {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock = channel.tryLock();
+				if (lock != null) {
+					return new PartialLock(path, channel, lock);
+				}
+			} catch (OverlappingFileLockException e) {
+				// Held through another channel of this JVM, as busy as a lock of another process
+			} catch (IOException | RuntimeException e) {
+				HELD.remove(path);
+				if (channel != null) {
+					channel.close();
+				}
+				throw e;
+			}
+			HELD.remove(path);
+			channel.close();
+			return null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				lock.release();
+				channel.close();
+			} finally {
+				HELD.remove(path);
+			}
+		}
+	}
+
+	private static void hashPrefix(File part, long length, Checksums.Verifier verifier) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(part.toPath())) {
+			long remaining = length;
+			int n;
+			while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+				verifier.update(buffer, 0, n);
+				remaining -= n;
+			}
+		}
+	}
+
+	private static long backoff(int attempt) {
+		return Math.min(MAX_BACKOFF_MILLIS, 1000L << Math.min(attempt - 1, 16));
+	}
+
+	/**
+	 * Opens the body of a response, within the controller's bandwidth cap when
+	 * the download is throttled.
+	 */
+	private InputStream body(HttpResponse<InputStream> response) {
+		return throttled ? TransferLimits.throttle(response.body()) : response.body();
+	}
+
+	/**
+	 * Sends a GET through the shared client.
+	 *
+	 * @param extra
+	 *            additional headers such as Range, or null
+	 */
+	private HttpResponse<InputStream> get(@CheckForNull Map<String, String> extra)
+			throws IOException, InterruptedException {
+		HttpRequest.Builder request = ArtifactoryHttpClient.request(settings, url, headers);
+		if (extra != null) {
+			for (Map.Entry<String, String> header : extra.entrySet()) {
+				request.header(header.getKey(), header.getValue());
+			}
+		}
+		return ArtifactoryHttpClient.get(settings).send(request.GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+	}
+
+	/**
+	 * Fetches the artifact as byte ranges over several connections at once.
+	 */
+	private long segmented(File target, final long length, int count, final String etag)
+			throws IOException, InterruptedException {
+		try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+			// Preallocate, so the segments can write anywhere in the file
+			file.setLength(length);
+			final FileChannel out = file.getChannel();
+			final long size = (length + count - 1) / count;
+			ExecutorService pool = Executors.newFixedThreadPool(count);
+			try {
+				List<Future<Void>> futures = new ArrayList<>();
+				for (int i = 0; i < count; i++) {
+					final long from = i * size;
+					final long to = Math.min(length, from + size) - 1;
+					futures.add(pool.submit(() -> {
+						fetchSegment(out, from, to, etag);
+						return null;
+					}));
+				}
+				Checksums.Verifier verifier = checksums.newVerifier();
+				if (verifier != null) {
+					digestInOrder(out, length, size, futures, verifier);
+				}
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+				if (verifier != null) {
+					try {
+						verifier.verify(url);
+					} catch (Checksums.MismatchException e) {
+						file.setLength(0);
+						throw e;
+					}
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Feeds the file to the checksum in order while the later segments are still
+	 * downloading, reading back each segment once its download finished, so the
+	 * bytes are likely to still sit in the page cache.
+	 */
+	private static void digestInOrder(FileChannel out, long length, long size, List<Future<Void>> futures,
+			Checksums.Verifier verifier) throws IOException, InterruptedException, ExecutionException {
+		ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+		long cursor = 0;
+		for (Future<Void> segment : futures) {
+			// Throws when the segment failed
+			segment.get();
+			long end = Math.min(length, cursor + size);
+			while (cursor < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), end - cursor));
+				int n = out.read(buffer, cursor);
+				if (n < 0) {
+					throw new IOException("File ended at " + cursor + " of " + length);
+				}
+				buffer.flip();
+				verifier.update(buffer);
+				cursor += n;
+			}
+		}
+	}
+
+	/**
+	 * Fetches one byte range, retrying from the last byte written when the
+	 * connection breaks.
+	 */
+	private void fetchSegment(FileChannel out, long from, long to, String etag)
+			throws IOException, InterruptedException {
+		long position = from;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				Map<String, String> range = new HashMap<>();
+				range.put("Range", "bytes=" + position + "-" + to);
+				if (etag != null) {
+					// A changed artifact answers with the whole new file instead of the range
+					range.put("If-Range", etag);
+				}
+				HttpResponse<InputStream> response = get(range);
+				int code = response.statusCode();
+				if (code != HttpURLConnection.HTTP_PARTIAL) {
+					response.body().close();
+					throw new AbortException("Server answered " + code + " to a range request for "
+							+ url + ", the artifact may have changed");
+				}
+				byte[] buffer = new byte[64 * 1024];
+				try (InputStream in = body(response)) {
+					int n;
+					while (position <= to && (n = in.read(buffer)) != -1) {
+						ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+						while (chunk.hasRemaining()) {
+							position += out.write(chunk, position);
+						}
+					}
+				}
+				if (position <= to) {
+					throw new IOException("Segment " + from + "-" + to + " ended early at " + position);
+				}
+				return;
+			} catch (AbortException | Checksums.MismatchException e) {
+				throw e;
+			} catch (IOException e) {
+				if (attempt >= ATTEMPTS) {
+					throw e;
+				}
+				LOGGER.log(WARNING, "Retrying segment {0}-{1} of {2} from byte {3}: {4}",
+						new Object[] {from, to, url, position, e.getMessage()});
+				Thread.sleep(backoff(attempt));
+			}
+		}
+	}
+
+	private static MessageDigest newDigest(String algorithm) throws IOException {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	static byte[] digest(String algorithm, byte[] data) throws IOException {
+		return newDigest(algorithm).digest(data);
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The outcome of a download.
+	 */
+	public static final class Result implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		/** The size of the downloaded file. */
+		private final long bytes;
+
+		/** The bytes an earlier, interrupted attempt had already fetched. */
+		private final long resumedBytes;
+
+		/** Whether the content was checked against a checksum. */
+		private final boolean verified;
+
+		Result(long bytes, long resumedBytes, boolean verified) {
+			this.bytes = bytes;
+			this.resumedBytes = resumedBytes;
+			this.verified = verified;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getResumedBytes() {
+			return resumedBytes;
+		}
+
+		public boolean isVerified() {
+			return verified;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package hudson.plugins.scm;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.export.Exported;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * One artifact an {@link ArtifactorySCM} checks out: the folder it comes from,
+ * the version tag picking the build, and where and how it lands in the
+ * workspace.
+ */
+public class ArtifactSpec extends AbstractDescribableImpl<ArtifactSpec> implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The Artifactory folder URL. */
+	private final String url;
+
+	/** The version tag, empty for the most recently modified artifact. */
+	private String latestVersionTag = "";
+
+	/** The directory below the workspace the artifact goes to, empty for the workspace itself. */
+	private String targetDirectory = "";
+
+	/** What is done with the downloaded file. */
+	private ExtractionMode extractionMode = ExtractionMode.EXTRACT;
+
+	/** The archive entries to extract, empty for all. */
+	private String includes = "";
+
+	/** The archive entries to skip. */
+	private String excludes = "";
+
+	/** The leading path components stripped from entries, null for the single top level folder. */
+	private Integer stripComponents;
+
+	/**
+	 * Instantiates a new artifact spec.
+	 *
+	 * @param url
+	 *            the Artifactory folder URL
+	 */
+	@DataBoundConstructor
+	public ArtifactSpec(String url) {
+		this.url = url == null ? "" : url.trim();
+	}
+
+	@Exported
+	public String getUrl() {
+		return url;
+	}
+
+	@DataBoundSetter
+	public void setLatestVersionTag(String latestVersionTag) {
+		this.latestVersionTag = latestVersionTag == null ? "" : latestVersionTag.trim();
+	}
+
+	@Exported
+	public String getLatestVersionTag() {
+		return latestVersionTag;
+	}
+
+	@DataBoundSetter
+	public void setTargetDirectory(String targetDirectory) {
+		this.targetDirectory = normalize(targetDirectory);
+	}
+
+	@Exported
+	public String getTargetDirectory() {
+		return targetDirectory;
+	}
+
+	@DataBoundSetter
+	public void setExtractionMode(ExtractionMode extractionMode) {
+		this.extractionMode = extractionMode == null ? ExtractionMode.EXTRACT : extractionMode;
+	}
+
+	@Exported
+	public ExtractionMode getExtractionMode() {
+		return extractionMode;
+	}
+
+	@DataBoundSetter
+	public void setIncludes(String includes) {
+		this.includes = includes == null ? "" : includes.trim();
+	}
+
+	@Exported
+	public String getIncludes() {
+		return includes;
+	}
+
+	@DataBoundSetter
+	public void setExcludes(String excludes) {
+		this.excludes = excludes == null ? "" : excludes.trim();
+	}
+
+	@Exported
+	public String getExcludes() {
+		return excludes;
+	}
+
+	@DataBoundSetter
+	public void setStripComponents(Integer stripComponents) {
+		this.stripComponents = stripComponents == null || stripComponents < 0 ? null : stripComponents;
+	}
+
+	@Exported
+	public Integer getStripComponents() {
+		return stripComponents;
+	}
+
+	/**
+	 * Gets the filter the archive entries go through.
+	 *
+	 * @return the filter
+	 */
+	public EntryFilter getFilter() {
+		return new EntryFilter(includes, excludes, stripComponents == null ? EntryFilter.AUTO : stripComponents);
+	}
+
+	/**
+	 * Gets the key builds record this artifact under. An artifact in the
+	 * workspace itself keeps its plain URL, as recorded before artifacts had
+	 * target directories.
+	 *
+	 * @return the key
+	 */
+	public String getKey() {
+		return targetDirectory.isEmpty() ? url : targetDirectory + "=" + url;
+	}
+
+	/**
+	 * Gets the directory the artifact goes to.
+	 *
+	 * @param workspace
+	 *            the workspace
+	 * @return the directory
+	 * @throws AbortException
+	 *             when the target directory leaves the workspace
+	 */
+	public FilePath target(FilePath workspace) throws AbortException {
+		if (targetDirectory.isEmpty()) {
+			return workspace;
+		}
+		if (!isRelative(targetDirectory)) {
+			throw new AbortException("Target directory " + targetDirectory + " is not inside the workspace");
+		}
+		return workspace.child(targetDirectory);
+	}
+
+	private static String normalize(String directory) {
+		if (directory == null) {
+			return "";
+		}
+		String normalized = directory.trim().replace('\\', '/');
+		while (normalized.endsWith("/")) {
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+		return normalized.equals(".") ? "" : normalized;
+	}
+
+	private static boolean isRelative(String directory) {
+		return !directory.startsWith("/") && directory.indexOf(':') < 0
+				&& !Arrays.asList(directory.split("/")).contains("..");
+	}
+
+	/**
+	 * What is done with a downloaded artifact.
+	 */
+	public enum ExtractionMode {
+
+		/** Extracted by the type its file name tells. */
+		EXTRACT("Extract the archive"),
+
+		/** Copied into the target directory as it is. */
+		COPY("Copy the file without extracting"),
+
+		/** A zip kept and indexed, its entries read with {@link ReadArtifactEntryStep}. */
+		LAZY("Keep the zip and read entries on demand");
+
+		private final String displayName;
+
+		ExtractionMode(String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
+	/**
+	 * The Class DescriptorImpl.
+	 */
+	@Extension
+	public static class DescriptorImpl extends Descriptor<ArtifactSpec> {
+
+		@Override
+		public String getDisplayName() {
+			return "Artifact";
+		}
+
+		public FormValidation doCheckUrl(@QueryParameter final String value) {
+			return FormValidation.validateRequired(value);
+		}
+
+		public FormValidation doCheckTargetDirectory(@QueryParameter final String value) {
+			String directory = normalize(value);
+			if (directory.isEmpty() || isRelative(directory)) {
+				return FormValidation.ok();
+			}
+			return FormValidation.error("Must be a directory inside the workspace");
+		}
+
+		public FormValidation doCheckStripComponents(@QueryParameter final String value) {
+			if (value == null || value.trim().isEmpty()) {
+				return FormValidation.ok();
+			}
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public ListBoxModel doFillExtractionModeItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (ExtractionMode mode : ExtractionMode.values()) {
+				items.add(mode.getDisplayName(), mode.name());
+			}
+			return items;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package hudson.plugins.scm;
+
+import static com.cloudbees.plugins.credentials.CredentialsProvider.findCredentialById;
+import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentialsInItem;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.security.ACL;
+
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * How the requests of one checkout or poll authenticate, fixed when it starts.
+ *
+ * The credentials go into the headers of every request up front, so the first
+ * request needs no 401 challenge and concurrent builds with different
+ * credentials never share a JVM wide {@link java.net.Authenticator}:
+ * <ul>
+ * <li>username and password as Basic authentication,</li>
+ * <li>a secret text holding an API key as {@code X-JFrog-Art-Api},</li>
+ * <li>any other secret text, or a password without a username, as a Bearer
+ * access token.</li>
+ * </ul>
+ */
+public final class ArtifactoryAuth implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** Anonymous requests. */
+	public static final ArtifactoryAuth NONE = new ArtifactoryAuth(null, "anonymous", Collections.emptyMap());
+
+	/** Artifactory API keys start with this, access tokens never do. */
+	private static final String API_KEY_PREFIX = "AKC";
+
+	/** The credentials ID, null for anonymous requests. */
+	private final String credentialsId;
+
+	/** How the requests authenticate, for the log. */
+	private final String scheme;
+
+	private final Map<String, String> headers;
+
+	private ArtifactoryAuth(@CheckForNull String credentialsId, String scheme, Map<String, String> headers) {
+		this.credentialsId = credentialsId;
+		this.scheme = scheme;
+		this.headers = headers;
+	}
+
+	/**
+	 * Authenticates with the credentials of a build.
+	 *
+	 * @param credentialsId
+	 *            the credentials ID, may be empty
+	 * @param run
+	 *            the build
+	 * @return the authentication, {@link #NONE} when there are no usable
+	 *         credentials
+	 */
+	public static ArtifactoryAuth forRun(@CheckForNull String credentialsId, Run<?, ?> run) {
+		if (credentialsId == null || credentialsId.isEmpty()) {
+			return NONE;
+		}
+		return of(findCredentialById(credentialsId, StandardCredentials.class, run));
+	}
+
+	/**
+	 * Authenticates with the credentials of a job for polling, where no build is
+	 * at hand.
+	 *
+	 * @param credentialsId
+	 *            the credentials ID, may be empty
+	 * @param job
+	 *            the job
+	 * @return the authentication, {@link #NONE} when there are no usable
+	 *         credentials
+	 */
+	public static ArtifactoryAuth forJob(@CheckForNull String credentialsId, Job<?, ?> job) {
+		if (credentialsId == null || credentialsId.isEmpty()) {
+			return NONE;
+		}
+		return of(CredentialsMatchers.firstOrNull(
+				lookupCredentialsInItem(StandardCredentials.class, job, ACL.SYSTEM2, Collections.emptyList()),
+				CredentialsMatchers.withId(credentialsId)));
+	}
+
+	/**
+	 * Tells whether credentials can authenticate requests to Artifactory.
+	 *
+	 * @param credentials
+	 *            the credentials
+	 * @return true for username and password and for secret text
+	 */
+	public static boolean supports(Credentials credentials) {
+		return credentials instanceof UsernamePasswordCredentials || credentials instanceof StringCredentials;
+	}
+
+	/**
+	 * Authenticates with given credentials.
+	 *
+	 * @param credentials
+	 *            the credentials, may be null
+	 * @return the authentication, {@link #NONE} when the credentials are not
+	 *         supported
+	 */
+	public static ArtifactoryAuth of(@CheckForNull StandardCredentials credentials) {
+		if (credentials instanceof UsernamePasswordCredentials) {
+			UsernamePasswordCredentials password = (UsernamePasswordCredentials) credentials;
+			String secret = password.getPassword().getPlainText();
+			if (password.getUsername() == null || password.getUsername().isEmpty()) {
+				return token(credentials.getId(), secret);
+			}
+			String token = password.getUsername() + ":" + secret;
+			return new ArtifactoryAuth(credentials.getId(), "Basic", Collections.singletonMap("Authorization",
+					"Basic " + Base64.getEncoder().encodeToString(token.getBytes(StandardCharsets.UTF_8))));
+		}
+		if (credentials instanceof StringCredentials) {
+			return token(credentials.getId(), ((StringCredentials) credentials).getSecret().getPlainText());
+		}
+		return NONE;
+	}
+
+	private static ArtifactoryAuth token(String credentialsId, String secret) {
+		if (secret.startsWith(API_KEY_PREFIX)) {
+			return new ArtifactoryAuth(credentialsId, "API key", Collections.singletonMap("X-JFrog-Art-Api", secret));
+		}
+		return new ArtifactoryAuth(credentialsId, "Bearer token",
+				Collections.singletonMap("Authorization", "Bearer " + secret));
+	}
+
+	/**
+	 * Gets the headers every request carries.
+	 *
+	 * @return the headers, empty for anonymous requests
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Gets the credentials ID answers to these requests are cached for, so they
+	 * are never handed to requests with other credentials.
+	 *
+	 * @return the credentials ID, null for anonymous requests
+	 */
+	@CheckForNull
+	public String getOwner() {
+		return credentialsId;
+	}
+
+	public boolean isAnonymous() {
+		return headers.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return credentialsId == null ? scheme : scheme + " (" + credentialsId + ")";
+	}
+}
@@ -0,0 +1,245 @@
+package hudson.plugins.scm;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * The HTTP client shared by every Artifactory request of the plugin.
+ *
+ * One {@link HttpClient} per JVM keeps connections alive between requests and
+ * multiplexes them over HTTP/2 when Artifactory supports it, so the AQL search,
+ * the header checks, the downloads and the polls stop paying a TLS handshake each.
+ * Agents build their own client from the {@link Settings} the controller sends.
+ */
+public final class ArtifactoryHttpClient {
+
+	/** Creates the parsers of search results, thread safe. */
+	private static final JsonFactory JSON = new JsonFactory();
+
+	private static HttpClient client;
+
+	private static Settings clientSettings;
+
+	private ArtifactoryHttpClient() {
+	}
+
+	/**
+	 * Gets the shared client, building it again when the settings changed.
+	 *
+	 * @param settings
+	 *            the settings
+	 * @return the client
+	 */
+	public static synchronized HttpClient get(Settings settings) {
+		if (client == null || !settings.equals(clientSettings)) {
+			client = HttpClient.newBuilder()
+					.version(settings.http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+					.connectTimeout(Duration.ofSeconds(settings.connectTimeoutSeconds))
+					.followRedirects(HttpClient.Redirect.NORMAL)
+					.build();
+			clientSettings = settings;
+		}
+		return client;
+	}
+
+	/**
+	 * Starts a request with the configured timeout and the given headers.
+	 *
+	 * @param settings
+	 *            the settings
+	 * @param url
+	 *            the URL
+	 * @param headers
+	 *            the headers, for example Authorization
+	 * @return the request builder
+	 */
+	public static HttpRequest.Builder request(Settings settings, String url, Map<String, String> headers) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+				.timeout(Duration.ofSeconds(settings.requestTimeoutSeconds));
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			builder.header(header.getKey(), header.getValue());
+		}
+		return builder;
+	}
+
+	/**
+	 * Sends a HEAD request.
+	 *
+	 * @param settings
+	 *            the settings
+	 * @param url
+	 *            the URL
+	 * @param headers
+	 *            the headers
+	 * @return the response
+	 */
+	public static HttpResponse<Void> head(Settings settings, String url, Map<String, String> headers)
+			throws IOException, InterruptedException {
+		HttpRequest request = request(settings, url, headers)
+				.method("HEAD", HttpRequest.BodyPublishers.noBody())
+				.build();
+		return get(settings).send(request, HttpResponse.BodyHandlers.discarding());
+	}
+
+	/**
+	 * Runs an AQL search, handing each result over while the response is read.
+	 *
+	 * The response is parsed as a token stream and never held in memory as a
+	 * whole, so a search over a long build history costs one result at a time.
+	 * Only the scalar fields of a result are kept, nested objects are skipped.
+	 *
+	 * @param settings
+	 *            the settings
+	 * @param apiRequest
+	 *            the search endpoint, ending with api/search/aql
+	 * @param payload
+	 *            the AQL query
+	 * @param headers
+	 *            the headers
+	 * @param handler
+	 *            receives each result, by field name
+	 * @return the number of results
+	 */
+	public static long search(Settings settings, String apiRequest, String payload, Map<String, String> headers,
+			Consumer<Map<String, String>> handler) throws IOException, InterruptedException {
+		HttpRequest request = request(settings, apiRequest, headers)
+				.header("Content-Type", "text/plain")
+				.POST(HttpRequest.BodyPublishers.ofString(payload, StandardCharsets.UTF_8))
+				.build();
+		HttpResponse<InputStream> response = get(settings).send(request, HttpResponse.BodyHandlers.ofInputStream());
+		long count = 0;
+		try (InputStream in = response.body(); JsonParser parser = JSON.createParser(in)) {
+			check(response, 200);
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Unexpected search response from " + apiRequest);
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (!"results".equals(field) || value != JsonToken.START_ARRAY) {
+					// The range summary and anything else Artifactory adds
+					parser.skipChildren();
+					continue;
+				}
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					Map<String, String> result = new HashMap<>();
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String name = parser.getCurrentName();
+						if (parser.nextToken().isScalarValue()) {
+							result.put(name, parser.getValueAsString());
+						} else {
+							parser.skipChildren();
+						}
+					}
+					handler.accept(result);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the Last-Modified header the way {@code URLConnection.getLastModified()} does.
+	 *
+	 * @param response
+	 *            the response
+	 * @return the time in milliseconds, or 0 when unknown
+	 */
+	public static long lastModified(HttpResponse<?> response) {
+		Optional<String> value = response.headers().firstValue("Last-Modified");
+		if (!value.isPresent()) {
+			return 0;
+		}
+		try {
+			return ZonedDateTime.parse(value.get(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Fails on anything but the expected status codes.
+	 *
+	 * @param response
+	 *            the response
+	 * @param expected
+	 *            the accepted status codes
+	 */
+	public static void check(HttpResponse<?> response, int... expected) throws IOException {
+		for (int code : expected) {
+			if (response.statusCode() == code) {
+				return;
+			}
+		}
+		throw new IOException("Server answered " + response.statusCode() + " for " + response.uri());
+	}
+
+	/**
+	 * The client configuration, small enough to send to agents.
+	 */
+	public static final class Settings implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		/** The time to establish a connection, in seconds. */
+		private final int connectTimeoutSeconds;
+
+		/** The time to wait for response headers, in seconds. */
+		private final int requestTimeoutSeconds;
+
+		/** Whether to negotiate HTTP/2. */
+		private final boolean http2;
+
+		/**
+		 * Instantiates new settings.
+		 *
+		 * @param connectTimeoutSeconds
+		 *            the time to establish a connection, in seconds
+		 * @param requestTimeoutSeconds
+		 *            the time to wait for response headers, in seconds
+		 * @param http2
+		 *            whether to negotiate HTTP/2
+		 */
+		public Settings(int connectTimeoutSeconds, int requestTimeoutSeconds, boolean http2) {
+			this.connectTimeoutSeconds = connectTimeoutSeconds;
+			this.requestTimeoutSeconds = requestTimeoutSeconds;
+			this.http2 = http2;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Settings)) {
+				return false;
+			}
+			Settings other = (Settings) o;
+			return connectTimeoutSeconds == other.connectTimeoutSeconds
+					&& requestTimeoutSeconds == other.requestTimeoutSeconds
+					&& http2 == other.http2;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(connectTimeoutSeconds, requestTimeoutSeconds, http2);
+		}
+	}
+}
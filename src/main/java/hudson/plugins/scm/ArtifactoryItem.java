@@ -0,0 +1,80 @@
+package hudson.plugins.scm;
+
+import java.io.Serializable;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * An artifact resolved through the Artifactory AQL API.
+ */
+public final class ArtifactoryItem implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The repository key. */
+	private final String repo;
+
+	/** The folder path inside the repository. */
+	private final String path;
+
+	/** The file name. */
+	private final String name;
+
+	/** The SHA-256 checksum reported by Artifactory, if any. */
+	private final String sha256;
+
+	/**
+	 * Instantiates a new artifactory item.
+	 *
+	 * @param repo
+	 *            the repository key
+	 * @param path
+	 *            the folder path inside the repository
+	 * @param name
+	 *            the file name
+	 * @param sha256
+	 *            the SHA-256 checksum, or null when unknown
+	 */
+	public ArtifactoryItem(String repo, String path, String name, @CheckForNull String sha256) {
+		this.repo = repo;
+		this.path = path;
+		this.name = name;
+		this.sha256 = sha256;
+	}
+
+	public String getRepo() {
+		return repo;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@CheckForNull
+	public String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * Builds the download URL of this item.
+	 *
+	 * @param host
+	 *            the Artifactory host
+	 * @param context
+	 *            the Artifactory context path, usually "artifactory"
+	 * @return the download URL
+	 */
+	public String toURL(String host, String context) {
+		return String.format("https://%s/%s/%s/%s/%s", host, context, repo, path, name);
+	}
+
+	@Override
+	public String toString() {
+		return repo + "/" + path + "/" + name;
+	}
+}
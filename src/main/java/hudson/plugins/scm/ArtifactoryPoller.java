@@ -0,0 +1,370 @@
+package hudson.plugins.scm;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Resolves the latest artifacts for every polling job of the controller.
+ *
+ * Jobs are grouped by Artifactory host, repo and credentials. The first poll of
+ * a cycle runs one AQL search with an {@code $or} over the name patterns of the
+ * whole group, the other jobs of the group are answered from that snapshot
+ * until the cycle ends. Polls that arrive while a search runs wait for it
+ * instead of starting their own, so the load on Artifactory grows with the
+ * number of repos rather than the number of jobs.
+ */
+@Extension
+public class ArtifactoryPoller {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(ArtifactoryPoller.class.getName());
+
+	/** Cycles a pattern stays in its group's search after the last job asked for it. */
+	private static final int RETENTION_CYCLES = 3;
+
+	/** The groups by host, context, repo and credentials. */
+	private final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<>();
+
+	/**
+	 * Gets the poller of this controller.
+	 *
+	 * @return the poller
+	 */
+	public static ArtifactoryPoller get() {
+		return ExtensionList.lookupSingleton(ArtifactoryPoller.class);
+	}
+
+	/**
+	 * Gets the latest artifact for a configured URL from the current snapshot,
+	 * searching Artifactory first when the snapshot is older than one cycle or
+	 * does not cover this URL yet.
+	 *
+	 * @param urlString
+	 *            the configured folder URL
+	 * @param latestVersionTag
+	 *            the version tag, empty for the most recently modified artifact
+	 * @param credentialsId
+	 *            the credentials the headers were built from, may be null
+	 * @param headers
+	 *            the request headers, credentials included
+	 * @param settings
+	 *            the HTTP client settings
+	 * @param cycleSeconds
+	 *            how long a snapshot answers polls
+	 * @param listener
+	 *            the listener
+	 * @return the latest artifact
+	 */
+	public ArtifactoryItem latest(String urlString, String latestVersionTag, String credentialsId,
+			Map<String, String> headers, ArtifactoryHttpClient.Settings settings, int cycleSeconds,
+			TaskListener listener) throws IOException, InterruptedException {
+		String[] url = urlString.replace("https://", "").split("/");
+		String namePattern = ArtifactorySCM.namePattern(url[url.length - 1], latestVersionTag);
+		Group group = groups.computeIfAbsent(key(url, credentialsId), k -> new Group(url[0], url[1], url[2]));
+
+		ArtifactoryItem item;
+		List<ArtifactoryItem> published = Collections.emptyList();
+		// Holding the group makes concurrent polls of the same repo share one search
+		synchronized (group) {
+			long now = System.currentTimeMillis();
+			long cycle = cycleSeconds * 1000L;
+			Watch watch = group.watches.get(namePattern);
+			if (watch == null) {
+				watch = new Watch(namePattern, !latestVersionTag.isEmpty());
+				group.watches.put(namePattern, watch);
+			}
+			watch.requested = now;
+			if (!watch.searched || now - group.refreshed >= cycle) {
+				published = refresh(group, headers, settings, now - RETENTION_CYCLES * cycle, listener);
+				group.refreshed = now;
+			}
+			item = group.snapshot.get(namePattern);
+		}
+		// Finding the idle agents of the watching jobs must not hold up the polls waiting for the group
+		for (ArtifactoryItem newItem : published) {
+			Prefetcher.published(group.host, newItem);
+		}
+		if (item == null) {
+			throw new IOException("No artifact in " + group.repo + " matches " + namePattern);
+		}
+		return item;
+	}
+
+	/**
+	 * Gets the latest artifact for a configured URL from the current snapshot,
+	 * without ever searching Artifactory.
+	 *
+	 * @param urlString
+	 *            the configured folder URL
+	 * @param latestVersionTag
+	 *            the version tag, empty for the most recently modified artifact
+	 * @param credentialsId
+	 *            the credentials the polls used, may be null
+	 * @param cycleSeconds
+	 *            how long a snapshot answers polls
+	 * @return the latest artifact, or null when no snapshot younger than one
+	 *         cycle covers the URL
+	 */
+	@CheckForNull
+	public ArtifactoryItem peek(String urlString, String latestVersionTag, String credentialsId, int cycleSeconds) {
+		String[] url = urlString.replace("https://", "").split("/");
+		Group group = groups.get(key(url, credentialsId));
+		if (group == null) {
+			return null;
+		}
+		synchronized (group) {
+			if (System.currentTimeMillis() - group.refreshed >= cycleSeconds * 1000L) {
+				return null;
+			}
+			return group.snapshot.get(ArtifactorySCM.namePattern(url[url.length - 1], latestVersionTag));
+		}
+	}
+
+	private static String key(String[] url, String credentialsId) {
+		return url[0] + "/" + url[1] + "/" + url[2] + "#" + credentialsId;
+	}
+
+	/**
+	 * Drops the snapshots of a repo, so the next poll of its jobs searches again.
+	 *
+	 * @param repo
+	 *            the repo
+	 */
+	public void invalidate(String repo) {
+		groups.values().removeIf(group -> group.repo.equals(repo));
+	}
+
+	/**
+	 * Searches all patterns of a group at once and replaces its snapshot.
+	 *
+	 * @return the artifacts that are new builds of patterns already watched
+	 */
+	private List<ArtifactoryItem> refresh(Group group, Map<String, String> headers, ArtifactoryHttpClient.Settings settings,
+			long retention, TaskListener listener) throws IOException, InterruptedException {
+		// Jobs that stopped polling drop out of the search after a few cycles
+		for (Iterator<Watch> it = group.watches.values().iterator(); it.hasNext();) {
+			if (it.next().requested < retention) {
+				it.remove();
+			}
+		}
+		long results = search(group.host, group.context, group.repo, group.watches.values(), headers, settings);
+
+		Map<String, ArtifactoryItem> snapshot = new HashMap<>();
+		List<ArtifactoryItem> published = new ArrayList<>();
+		for (Watch watch : group.watches.values()) {
+			if (watch.best != null) {
+				snapshot.put(watch.namePattern, watch.best);
+				ArtifactoryItem previous = group.snapshot.get(watch.namePattern);
+				// A new build for a pattern already watched, its jobs are about to check it out
+				if (previous != null && !previous.toString().equals(watch.best.toString())) {
+					published.add(watch.best);
+				}
+			}
+			watch.best = null;
+			watch.searched = true;
+		}
+		group.snapshot = snapshot;
+		listener.getLogger().println("[poll] Searched " + group.watches.size() + " artifact pattern(s) of "
+				+ group.repo + " in one query, " + results + " result(s)");
+		LOGGER.log(Level.FINE, "Refreshed {0} patterns of {1}", new Object[] { group.watches.size(), group.repo });
+		return published;
+	}
+
+	/**
+	 * Searches several name patterns of one repo with a single query, outside
+	 * of any polling snapshot.
+	 *
+	 * @param host
+	 *            the Artifactory host
+	 * @param context
+	 *            the Artifactory context path
+	 * @param repo
+	 *            the repo
+	 * @param patterns
+	 *            the name patterns, each with whether its latest is picked by build number
+	 * @param headers
+	 *            the request headers, credentials included
+	 * @param settings
+	 *            the HTTP client settings
+	 * @return the latest artifact of each pattern that matched any
+	 */
+	static Map<String, ArtifactoryItem> search(String host, String context, String repo, Map<String, Boolean> patterns,
+			Map<String, String> headers, ArtifactoryHttpClient.Settings settings) throws IOException, InterruptedException {
+		List<Watch> watches = new ArrayList<>();
+		for (Map.Entry<String, Boolean> pattern : patterns.entrySet()) {
+			watches.add(new Watch(pattern.getKey(), pattern.getValue()));
+		}
+		search(host, context, repo, watches, headers, settings);
+		Map<String, ArtifactoryItem> latest = new HashMap<>();
+		for (Watch watch : watches) {
+			if (watch.best != null) {
+				latest.put(watch.namePattern, watch.best);
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Runs one {@code $or} query for all given patterns and leaves the latest
+	 * artifact of each in its watch.
+	 *
+	 * @return the number of results
+	 */
+	private static long search(String host, String context, String repo, Collection<Watch> watches,
+			Map<String, String> headers, ArtifactoryHttpClient.Settings settings) throws IOException, InterruptedException {
+		StringBuilder or = new StringBuilder();
+		for (Watch watch : watches) {
+			if (or.length() > 0) {
+				or.append(", ");
+			}
+			or.append(String.format("{\"name\":{\"$match\" : \"%s\"}}", watch.namePattern));
+		}
+		String payload = String.format("items.find( { \"repo\":\"%s\", \"$or\":[ %s ] })%s",
+				repo, or, ArtifactorySCM.AQL_INCLUDE);
+		String apiRequest = String.format("https://%s/%s/api/search/aql", host, context);
+
+		for (Watch watch : watches) {
+			watch.best = null;
+			watch.bestRank = Long.MIN_VALUE;
+		}
+		// Only the best result per pattern is kept while the response streams by
+		return ArtifactoryHttpClient.search(settings, apiRequest, payload, headers, result -> {
+			String name = result.get("name");
+			for (Watch watch : watches) {
+				if (name != null && watch.regex.matcher(name).matches()) {
+					watch.offer(result);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Converts an AQL {@code $match} pattern to a regular expression.
+	 */
+	static Pattern toRegex(String namePattern) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (char c : namePattern.toCharArray()) {
+			if (c == '*' || c == '?') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '*' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * The jobs polling one repo with one set of credentials.
+	 */
+	private static final class Group {
+
+		private final String host;
+
+		private final String context;
+
+		private final String repo;
+
+		/** The patterns polled in this group. */
+		private final Map<String, Watch> watches = new HashMap<>();
+
+		/** The latest artifact per pattern, from the last search. */
+		private Map<String, ArtifactoryItem> snapshot = new HashMap<>();
+
+		/** When the last search ran. */
+		private long refreshed;
+
+		Group(String host, String context, String repo) {
+			this.host = host;
+			this.context = context;
+			this.repo = repo;
+		}
+	}
+
+	/**
+	 * One name pattern some job polls for.
+	 */
+	private static final class Watch {
+
+		private final String namePattern;
+
+		private final Pattern regex;
+
+		/** Whether the latest is picked by build number rather than by modification time. */
+		private final boolean byBuildNumber;
+
+		/** When a job last asked for this pattern. */
+		private long requested;
+
+		/** Whether the snapshot covers this pattern. */
+		private boolean searched;
+
+		/** The latest result seen so far by the running search. */
+		private ArtifactoryItem best;
+
+		/** The build number or modification time of {@link #best}. */
+		private long bestRank;
+
+		Watch(String namePattern, boolean byBuildNumber) {
+			this.namePattern = namePattern;
+			this.regex = toRegex(namePattern);
+			this.byBuildNumber = byBuildNumber;
+		}
+
+		/**
+		 * Keeps a result when it is the latest so far, picked the same way a
+		 * single search would.
+		 */
+		void offer(Map<String, String> result) {
+			long rank = byBuildNumber ? buildNumber(result) : modified(result);
+			if (best == null || rank >= bestRank) {
+				best = new ArtifactoryItem(result.get("repo"), result.get("path"), result.get("name"),
+						result.get("sha256"));
+				bestRank = rank;
+			}
+		}
+
+		private static int buildNumber(Map<String, String> result) {
+			try {
+				return ArtifactorySCM.extractNumberFromName(result.get("name"));
+			} catch (NumberFormatException e) {
+				// One oddly named artifact must not fail the search of the whole group
+				return -1;
+			}
+		}
+
+		private static long modified(Map<String, String> result) {
+			try {
+				return OffsetDateTime.parse(result.get("modified")).toInstant().toEpochMilli();
+			} catch (DateTimeParseException | NullPointerException e) {
+				return 0;
+			}
+		}
+	}
+}
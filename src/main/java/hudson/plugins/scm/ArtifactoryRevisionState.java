@@ -0,0 +1,107 @@
+package hudson.plugins.scm;
+
+import hudson.scm.SCMRevisionState;
+
+import java.util.HashMap;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * What a build checked out, kept as the polling baseline of its job.
+ *
+ * Polls compare the latest artifacts against it, and the next checkout gets it
+ * back: when the controller's last poll still resolves every artifact to the
+ * one recorded here and the workspace holds it, the checkout is done without a
+ * single request to Artifactory.
+ */
+public final class ArtifactoryRevisionState extends SCMRevisionState {
+
+	/** The artifact checked out for each configured URL, by artifact key. */
+	private final HashMap<String, Revision> revisions;
+
+	private ArtifactoryRevisionState(HashMap<String, Revision> revisions) {
+		this.revisions = revisions;
+	}
+
+	/**
+	 * Gets the revisions a build recorded while checking out.
+	 *
+	 * @param action
+	 *            what the build recorded
+	 * @return the revision state
+	 */
+	public static ArtifactoryRevisionState of(LastModifiedDateAction action) {
+		HashMap<String, Revision> revisions = new HashMap<>();
+		for (String key : action.getKeys()) {
+			String url = action.getResolvedUrl(key);
+			if (url != null) {
+				revisions.put(key, new Revision(url, action.getLastModified(key), action.getETag(key),
+						action.getChecksum(key)));
+			}
+		}
+		return new ArtifactoryRevisionState(revisions);
+	}
+
+	/**
+	 * Gets the artifact checked out for a configured URL.
+	 *
+	 * @param key
+	 *            the artifact key
+	 * @return the revision, or null when the build did not record one
+	 */
+	@CheckForNull
+	public Revision get(String key) {
+		return revisions.get(key);
+	}
+
+	@Override
+	public String toString() {
+		return "ArtifactoryRevisionState" + revisions;
+	}
+
+	/**
+	 * One artifact as it was checked out.
+	 */
+	public static final class Revision {
+
+		/** The artifact URL the configured URL resolved to. */
+		private final String url;
+
+		/** The Last-Modified time of the artifact, 0 when the server sent none. */
+		private final long lastModified;
+
+		private final String etag;
+
+		private final String sha256;
+
+		Revision(String url, long lastModified, @CheckForNull String etag, @CheckForNull String sha256) {
+			this.url = url;
+			this.lastModified = lastModified;
+			this.etag = etag;
+			this.sha256 = sha256;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		@CheckForNull
+		public String getETag() {
+			return etag;
+		}
+
+		@CheckForNull
+		public String getSha256() {
+			return sha256;
+		}
+
+		@Override
+		public String toString() {
+			return url + (sha256 == null ? "" : " sha256 " + sha256);
+		}
+	}
+}
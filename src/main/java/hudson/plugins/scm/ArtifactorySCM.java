@@ -1,20 +1,19 @@
 package hudson.plugins.scm;
 
 import static com.cloudbees.plugins.credentials.CredentialsProvider.*;
-import static hudson.FilePath.TarCompression.GZIP;
-import static hudson.FilePath.TarCompression.NONE;
 import static java.util.logging.Level.ALL;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
 
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
-import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
-
-import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
+import hudson.remoting.RemoteInputStream;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.NullChangeLogParser;
 import hudson.scm.PollingResult;
@@ -23,16 +22,25 @@ import hudson.scm.SCMRevisionState;
 import hudson.scm.SCM;
 import hudson.security.ACL;
 import hudson.util.FormValidation;
+import hudson.util.Secret;
 
 
 import java.io.*;
 import java.net.*;
+import java.net.http.HttpResponse;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -43,9 +51,7 @@ import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.CountingInputStream;
-import org.jvnet.robust_http_client.RetryableHttpStream;
 import org.kohsuke.stapler.*;
 import org.kohsuke.stapler.export.Exported;
 
@@ -96,15 +102,36 @@ public class ArtifactorySCM extends SCM {
 	/** The clear workspace. */
 	private boolean clearWorkspace;
 
+	/** Sync only changed zip entries instead of re-extracting everything. */
+	private boolean incremental;
+
+	/** More artifacts checked out next to the one of the url. */
+	private List<ArtifactSpec> artifacts = new ArrayList<>();
+
+	/** The entries of the url's archive to extract, empty for all. */
+	private String includes;
+
+	/** The entries of the url's archive to skip. */
+	private String excludes;
+
+	/** The leading path components stripped from the url's archive, null for the single top level folder. */
+	private Integer stripComponents;
+
 	//private boolean useCache;
 
 	private String credentialsId;
 
 
+	/** The AQL fields read from search results, the checksum keys the agent cache. */
+	static final String AQL_INCLUDE = ".include(\"repo\", \"path\", \"name\", \"modified\", \"sha256\")";
+
 	/** The Constant LOGGER. */
 	private static final Logger LOGGER = Logger.getLogger(ArtifactorySCM.class
 			.getName());
 
+	/** Artifacts transferred ahead of the one being extracted. */
+	private static final int PIPELINE_DEPTH = 2;
+
 	/**
 	 * Instantiates a new Artifactory scm.
 	 *
@@ -162,6 +189,16 @@ public class ArtifactorySCM extends SCM {
 		return clearWorkspace;
 	}
 
+	@DataBoundSetter
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	@Exported
+	public boolean isIncremental() {
+		return incremental;
+	}
+
 	/*
 	@DataBoundSetter
 	public void setUseCache(boolean useCache) {
@@ -193,6 +230,46 @@ public class ArtifactorySCM extends SCM {
 		return latestVersionTag;
 	}
 
+	@DataBoundSetter
+	public void setIncludes(String includes) {
+		this.includes = includes;
+	}
+
+	@Exported
+	public String getIncludes() {
+		return includes;
+	}
+
+	@DataBoundSetter
+	public void setExcludes(String excludes) {
+		this.excludes = excludes;
+	}
+
+	@Exported
+	public String getExcludes() {
+		return excludes;
+	}
+
+	@DataBoundSetter
+	public void setStripComponents(Integer stripComponents) {
+		this.stripComponents = stripComponents;
+	}
+
+	@Exported
+	public Integer getStripComponents() {
+		return stripComponents;
+	}
+
+	@DataBoundSetter
+	public void setArtifacts(List<ArtifactSpec> artifacts) {
+		this.artifacts = artifacts == null ? new ArrayList<>() : new ArrayList<>(artifacts);
+	}
+
+	@Exported
+	public List<ArtifactSpec> getArtifacts() {
+		return artifacts == null ? Collections.emptyList() : Collections.unmodifiableList(artifacts);
+	}
+
 	/**
 	 * Gets the urls.
 	 * 
@@ -202,16 +279,54 @@ public class ArtifactorySCM extends SCM {
 		return urls.toArray(new URLTuple[urls.size()]);
 	}
 
+	/**
+	 * Gets every artifact this SCM checks out, the one of the url first.
+	 *
+	 * @return the artifacts
+	 */
+	List<ArtifactSpec> getArtifactSpecs() {
+		List<ArtifactSpec> specs = new ArrayList<>();
+		if (url != null && !url.trim().isEmpty()) {
+			ArtifactSpec spec = new ArtifactSpec(url);
+			spec.setLatestVersionTag(latestVersionTag);
+			spec.setIncludes(includes);
+			spec.setExcludes(excludes);
+			spec.setStripComponents(stripComponents);
+			specs.add(spec);
+		}
+		specs.addAll(getArtifacts());
+		return specs;
+	}
+
     @Override
     public SCMRevisionState calcRevisionsFromBuild(
             @Nonnull final Run<?, ?> build, @Nullable final FilePath workspace,
             @Nullable final Launcher launcher, @Nonnull final TaskListener listener
     ) throws IOException, InterruptedException {
-        // We add our SCMRevisionState from within checkout, so this shouldn't
-        // be called often. However it will be called if this is the first
-        // build, if a build was aborted before it reported the repository
-        // state, etc.
-        return SCMRevisionState.NONE;
+        // The artifacts checkout recorded become the polling baseline, and come
+        // back to the next checkout
+        ArtifactoryRevisionState state = revisionsOf(build);
+        return state == null ? SCMRevisionState.NONE : state;
+    }
+
+    /**
+     * Gets what a build checked out for this SCM.
+     *
+     * @return the revisions, or null when the build recorded none for every artifact
+     */
+    @CheckForNull
+    private ArtifactoryRevisionState revisionsOf(Run<?, ?> build) {
+        List<String> keys = new ArrayList<>();
+        for (ArtifactSpec spec : getArtifactSpecs()) {
+            keys.add(spec.getKey());
+        }
+        // A Pipeline checking out several of these records an action for each
+        for (LastModifiedDateAction action : build.getActions(LastModifiedDateAction.class)) {
+            if (action.getKeys().containsAll(keys)) {
+                return ArtifactoryRevisionState.of(action);
+            }
+        }
+        return null;
     }
 
 	/**
@@ -229,179 +344,101 @@ public class ArtifactorySCM extends SCM {
 		LOGGER.log(ALL, "checkout() Enter >>>");
 
 		if (clearWorkspace) {
-			workspace.deleteContents();
+			// The old files are moved aside and deleted in the background
+			WorkspaceSwap.clear(workspace);
 			listener.getLogger().println("Cleared workspace");
 		}
 		long start = System.currentTimeMillis();
 		LastModifiedDateAction action = new LastModifiedDateAction(run);
-		/*
-		Hudson h = Hudson.getInstance(); // this code might run on slaves
-		ProxyConfiguration proxyConfiguration = h != null ? h.proxy : null;
-		String proxyUserName = null;
-		String proxyPassword = null;
-		if (proxyConfiguration != null
-				&& proxyConfiguration.getUserName() != null
-				&& proxyConfiguration.getUserName().trim().length() > 0) {
-			proxyUserName = proxyConfiguration.getUserName();
-			proxyPassword = proxyConfiguration.getPassword();
+		List<ArtifactSpec> specs = getArtifactSpecs();
+		// Fixed for the whole checkout: the shared HTTP client has no authenticator, every
+		// request carries the credentials of this build up front
+		ArtifactoryAuth auth = ArtifactoryAuth.forRun(credentialsId, run);
+		Map<String, String> headers = auth.getHeaders();
+		listener.getLogger().println("Authentication: " + auth);
+		ArtifactoryHttpClient.Settings settings = ((ArtifactorySCMDescriptorImpl) getDescriptor()).getHttpSettings();
+
+		// A build of artifacts that did not change since the last poll needs nothing from Artifactory
+		if (baseline instanceof ArtifactoryRevisionState && !clearWorkspace
+				&& isUpToDate(specs, (ArtifactoryRevisionState) baseline, workspace, action)) {
+			listener.getLogger().println("All files are up to date with the last poll, nothing requested from Artifactory");
+			this.createEmptyChangeLog(changelogFile, listener, "log");
+			run.addAction(action);
+			listener.getLogger().println(
+					"Total time taken to download files in millis: "
+							+ (System.currentTimeMillis() - start));
+			LOGGER.log(ALL, " checkout() Exit >>>");
+			return;
 		}
-		 */
-
-		for (URLTuple tuple : urls) {
-			String urlString = tuple.getUrlString();
-			InputStream is = null;
-			try {
-				URLConnection connection = null;
-				listener.getLogger().println("File URL : " + urlString);
-				listener.getLogger().println("Cred ID : " + getCredentialsId());
-
-				UsernamePasswordCredentials passwordCredentials = initPasswordCredentials(run);
-				if (passwordCredentials != null) {
-					tuple.username = passwordCredentials.getUsername();
-					tuple.password = passwordCredentials.getPassword().getPlainText();
-					tuple.setAuthenticator();
-				}
 
-				String latestURLString = buildLatestURL(urlString, latestVersionTag, listener);
-				listener.getLogger().println("Latest Version Available: " + latestURLString);
-				URL url = new URL(latestURLString);
-				connection = url.openConnection();
-
-				/*
-				if (proxyConfiguration == null) {
-					listener.getLogger().println("Proxy is not configured");
-					connection = url.openConnection();
-				} else {
-					listener.getLogger().println(
-							"Proxy is configured"
-									+ "\n"
-									+ ProxyConfiguration.getXmlFile()
-											.asString());
-					// Proxy should be used when it is configured in Jenkins
-					// global configuration
-					connection = url.openConnection(proxyConfiguration
-							.createProxy());
-					// setting authentication parameters for proxy.
-					// Authenticator class is not used here because of two
-					// reasons. The actual URL to download file may be secured
-					// and we can not set two Authenticators at
-					// the same time using Authenticator.setDefault and the
-					// second reason is username/password caching
-					// bug in JDK.
-					// (say if user gives incorrect username/password and when
-					// validation is performed, that
-					// username/password cached and even
-					// if user gives correct password next time
-					// java.net.URLConnection uses cached password only.
-					// User name and password is not cached when it is set as
-					// request parameter.)
-					// http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6626700
-					if (proxyUserName != null) {
-						listener.getLogger()
-								.println(
-										"User Name and Password is configured to connect through proxy");
-						connection.setRequestProperty(
-								"Proxy-Authorization",
-								"Basic "
-										+ new String(Base64
-												.encodeBase64((proxyUserName
-														+ ":" + proxyPassword)
-														.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+		// Resolution, transfer and extraction overlap across the artifacts: the next
+		// artifacts download while the previous one is extracted. The stages of all
+		// checkouts share the threads of TransferLimits
+		ExecutorService stages = TransferLimits.executor((ArtifactorySCMDescriptorImpl) getDescriptor());
+		List<CompletableFuture<Plan>> plans = new ArrayList<>();
+		for (int i = 0; i < specs.size(); i++) {
+			plans.add(new CompletableFuture<>());
+		}
+		List<Future<Fetched>> fetches = new ArrayList<>();
+		// A lone artifact streams straight into the workspace, more of them are spooled to overlap
+		boolean stream = specs.size() == 1;
+		// Transfers of all builds take turns by job, this checkout's waits add up here
+		String job = run.getParent().getFullName();
+		AtomicLong queueWait = new AtomicLong();
+		int installed = 0;
+		Future<?> resolution = null;
+		try {
+			// Submitted before the transfers waiting for its plans, so it gets a thread before any of them
+			resolution = stages.submit(() -> planAll(specs, headers, settings, workspace, action, job, queueWait,
+					plans, listener));
+			for (int i = 0; i < Math.min(PIPELINE_DEPTH, specs.size()); i++) {
+				fetches.add(submitFetch(stages, plans.get(i), workspace, stream, listener));
+			}
+			for (ArtifactSpec spec : specs) {
+				String urlString = spec.getUrl();
+				try {
+					Plan plan = await(plans.get(installed));
+					Fetched fetched = await(fetches.get(installed));
+					installed++;
+					if (fetches.size() < specs.size()) {
+						fetches.add(submitFetch(stages, plans.get(fetches.size()), workspace, stream, listener));
 					}
-
-				}
-				*/
-
-				// Do not use cached file
-				connection.setUseCaches(false);
-
-				/*
-				// A way to get headers from the artifactory request if needed
-				String artifactVersion = connection.getHeaderField("X-Artifactory-Filename");
-				listener.getLogger().println("Artifact File Version: " + artifactVersion);
-				 */
-				// Saving last modified time stamp for later use while polling
-				// for source code change
-				action.setLastModified(urlString, connection.getLastModified());
-				long sourceLastUpdatedTimestamp = connection.getLastModified();
-
-				File f = new File(url.getPath());
-				String fileName = f.getName();
-				// creating a timestamp file which will be used to see if source
-				// file is updated since last download
-				FilePath timestamp = workspace.child("." + fileName
-						+ "-timestamp");
-
-				if (!workspace.exists()) {
-					workspace.mkdirs();
+					if (plan != null) {
+						install(plan, fetched, workspace, listener);
+					}
+				} catch (Checksums.MismatchException e) {
+					// A corrupt artifact fails the build here instead of in whatever runs on it
+					throw new AbortException(e.getMessage());
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (RuntimeException e) {
+					throw new RuntimeException("Couldn't process stuff", e);
+				} catch (Exception e) {
+					// The artifacts after this one are not installed, the build must not go on with part of them
+					LOGGER.log(ALL, " checkout() Exit >>>");
+					throw new IOException("Unable to copy " + urlString, e);
 				}
-				if (timestamp.exists()
-						&& sourceLastUpdatedTimestamp == timestamp
-								.lastModified()) {
-					listener.getLogger().println("File is up to date");
 
-				}
-				/*
-				else if (useCache) {
-					listener.getLogger().println("Cache Option selected. Will not download source code from remote URL. Will attempt to run source locally");
-				}
-				*/
-				else {
-					// If clear workspace is left unchecked, a new artifact will not overwrite old files
-					// With a new last modified data aka a new artifact found, we should delete the workspace
-					workspace.deleteContents();
-					listener.getLogger().println("Clearing workspace for new files");
-
-					// for HTTP downloads, enable automatic retry for added
-					// resilience
-					is = new CountingInputStream(url.getProtocol().equals(
-							"http") ? new RetryableHttpStream(url)
-							: connection.getInputStream());
-
-					if (url.toExternalForm().endsWith(".zip")
-							|| url.toExternalForm().endsWith(".jar")
-							|| url.toExternalForm().endsWith(".war")
-							|| url.toExternalForm().endsWith(".ear")) {
-						listener.getLogger().println(
-								"Compression type is zip/jar/war");
-						workspace.unzipFrom(is);
-					} else if (url.toExternalForm().endsWith(".gz")) {
-						listener.getLogger().println("Compression type is gz");
-						workspace.untarFrom(is, GZIP);
-					} else if (url.toExternalForm().endsWith(".tar")) {
-						listener.getLogger().println("Compression type is tar");
-						workspace.untarFrom(is, NONE);
-					} else {
-						listener.getLogger()
-								.println(
-										"Compression type unknown. Hence directly downloading the file");
-						listener.getLogger().println(workspace.child(fileName).getName());
-						workspace.child(fileName).copyFrom(is);
+				this.createEmptyChangeLog(changelogFile, listener, "log");
+			}
+		} finally {
+			if (resolution != null) {
+				resolution.cancel(true);
+			}
+			// Artifacts fetched ahead of a failure are never extracted
+			for (int i = installed; i < fetches.size(); i++) {
+				Future<Fetched> fetch = fetches.get(i);
+				if (!fetch.cancel(true) && !fetch.isCancelled()) {
+					try {
+						Fetched fetched = await(fetch);
+						if (fetched != null) {
+							fetched.discard();
+						}
+					} catch (Exception e) {
+						LOGGER.log(FINE, "Discarding a download ahead of a failure", e);
 					}
-
-					// If zip is packaged with a parent directory, move children up to workspace and remove directory
-					if (workspace.list().size() == 1 && workspace.list().get(0).isDirectory())
-						workspace.list().get(0).moveAllChildrenTo(workspace);
-
-					listener.getLogger().println(
-							"Downloaded " + latestURLString + " to "
-									+ workspace.toURI());
-					// update the last modified timestamp of timestamp file
-					timestamp.touch(sourceLastUpdatedTimestamp);
 				}
-			} catch (RuntimeException e) {
-				throw new RuntimeException("Couldn't process stuff", e);
-			} catch (Exception e) {
-				listener.error("Unable to copy " + urlString + "\n");
-				e.printStackTrace(listener.getLogger());
-				LOGGER.log(ALL, " checkout() Exit >>>");
-				return;
-			} finally {
-				if (is != null)
-					is.close();
 			}
-
-			this.createEmptyChangeLog(changelogFile, listener, "log");
 		}
 		// Adding LastModificationDateAction to build for later use while
 		// pooling. This is optimized code as
@@ -410,19 +447,631 @@ public class ArtifactorySCM extends SCM {
 		listener.getLogger().println(
 				"Total time taken to download files in millis: "
 						+ (System.currentTimeMillis() - start));
+		listener.getLogger().println(
+				"Time spent waiting for a transfer slot in millis: " + queueWait.get());
 
 		LOGGER.log(ALL, " checkout() Exit >>>");
 	}
 
-	UsernamePasswordCredentials initPasswordCredentials(Run<?, ?> run) {
-		final UsernamePasswordCredentials passwordCredentials;
-		StandardUsernameCredentials credentials = findCredentialById(credentialsId, StandardUsernameCredentials.class, run);
-		if (credentials instanceof UsernamePasswordCredentials) {
-			passwordCredentials = (UsernamePasswordCredentials) credentials;
+	/**
+	 * Checks the workspace against the controller's last poll, without a request
+	 * to Artifactory. Every artifact must still resolve to the one the baseline
+	 * recorded and its timestamp file must be in place. The poll snapshot is used
+	 * only while a poll would still accept it, and a webhook call drops it.
+	 *
+	 * @param specs
+	 *            the artifacts
+	 * @param baseline
+	 *            what the previous build checked out
+	 * @param workspace
+	 *            the workspace
+	 * @param action
+	 *            records the artifacts for polling when they are up to date
+	 * @return true when every artifact is up to date
+	 */
+	private boolean isUpToDate(List<ArtifactSpec> specs, ArtifactoryRevisionState baseline, FilePath workspace,
+			LastModifiedDateAction action) throws IOException, InterruptedException {
+		int cycleSeconds = ((ArtifactorySCMDescriptorImpl) getDescriptor()).getPollCycleSeconds();
+		for (ArtifactSpec spec : specs) {
+			ArtifactoryRevisionState.Revision revision = baseline.get(spec.getKey());
+			ArtifactoryItem latest = ArtifactoryPoller.get().peek(spec.getUrl(), spec.getLatestVersionTag(),
+					credentialsId, cycleSeconds);
+			if (!isUpToDate(spec, revision, latest, workspace)) {
+				return false;
+			}
+			action.setLastModified(spec.getKey(), revision.getLastModified());
+			action.setResolvedUrl(spec.getKey(), revision.getUrl());
+			action.setETag(spec.getKey(), revision.getETag());
+			action.setChecksum(spec.getKey(), revision.getSha256());
+		}
+		return true;
+	}
+
+	/**
+	 * Checks one artifact of the workspace against the latest one.
+	 *
+	 * @param revision
+	 *            what the previous build checked out, null when it recorded
+	 *            nothing for the artifact
+	 * @param latest
+	 *            the latest artifact, null when the poll snapshot does not know it
+	 * @return true when the latest artifact is the one checked out and its
+	 *         timestamp file is still in place
+	 */
+	static boolean isUpToDate(ArtifactSpec spec, @CheckForNull ArtifactoryRevisionState.Revision revision,
+			@CheckForNull ArtifactoryItem latest, FilePath workspace) throws IOException, InterruptedException {
+		if (revision == null || latest == null || revision.getSha256() == null
+				|| !revision.getSha256().equalsIgnoreCase(latest.getSha256())) {
+			return false;
+		}
+		String[] urlParts = spec.getUrl().replace("https://", "").split("/");
+		if (!revision.getUrl().equals(latest.toURL(urlParts[0], urlParts[1]))) {
+			return false;
+		}
+		String fileName = new File(new URL(revision.getUrl()).getPath()).getName();
+		FilePath timestamp = spec.target(workspace).child("." + fileName + "-timestamp");
+		return timestamp.exists() && timestamp.lastModified() == revision.getLastModified();
+	}
+
+	/**
+	 * Resolution stage: finds the latest artifact of one URL and records it for
+	 * polling.
+	 *
+	 * @return what to fetch, or null when the workspace is up to date
+	 */
+	private Plan plan(ArtifactSpec spec, ArtifactoryItem latest, Map<String, String> headers, FilePath workspace,
+			boolean ownsTarget, LastModifiedDateAction action, TaskListener listener)
+			throws IOException, InterruptedException {
+		String urlString = spec.getUrl();
+		String key = spec.getKey();
+		HttpResponse<Void> head;
+		listener.getLogger().println("File URL : " + urlString);
+		listener.getLogger().println("Cred ID : " + getCredentialsId());
+
+		ArtifactorySCMDescriptorImpl descriptor = (ArtifactorySCMDescriptorImpl) getDescriptor();
+		ArtifactoryHttpClient.Settings settings = descriptor.getHttpSettings();
+
+		String[] urlParts = urlString.replace("https://", "").split("/");
+		String latestURLString = latest.toURL(urlParts[0], urlParts[1]);
+		listener.getLogger().println("Latest Version Available: " + latestURLString);
+		// The body is fetched separately, this request only needs the headers
+		head = ArtifactoryHttpClient.head(settings, latestURLString, headers);
+		if (head.statusCode() == HttpURLConnection.HTTP_NOT_FOUND || head.statusCode() == HttpURLConnection.HTTP_GONE) {
+			// The metadata index learns about deleted artifacts only when it is rebuilt, and the caches
+			// may have answered from it, so everything known about the repo is dropped and searched again
+			listener.getLogger().println(latestURLString + " is gone, resolving the latest version again");
+			MetadataIndex.get().rebuild(urlParts[2]);
+			ResolutionCache.get().invalidate(urlParts[2]);
+			ArtifactoryPoller.get().invalidate(urlParts[2]);
+			latest = resolveCached(urlString, spec.getLatestVersionTag(), headers, settings, listener);
+			latestURLString = latest.toURL(urlParts[0], urlParts[1]);
+			listener.getLogger().println("Latest Version Available: " + latestURLString);
+			head = ArtifactoryHttpClient.head(settings, latestURLString, headers);
+		}
+		ArtifactoryHttpClient.check(head, HttpURLConnection.HTTP_OK);
+		URL url = new URL(latestURLString);
+
+		// Saving last modified time stamp for later use while polling
+		// for source code change
+		long sourceLastUpdatedTimestamp = ArtifactoryHttpClient.lastModified(head);
+		action.setLastModified(key, sourceLastUpdatedTimestamp);
+		// Polling revalidates this artifact with a conditional HEAD request
+		action.setResolvedUrl(key, latestURLString);
+		action.setETag(key, head.headers().firstValue("ETag").orElse(null));
+		action.setChecksum(key, head.headers().firstValue("X-Checksum-Sha256").orElse(latest.getSha256()));
+
+		File f = new File(url.getPath());
+		String fileName = f.getName();
+		FilePath target = spec.target(workspace);
+		// creating a timestamp file which will be used to see if source
+		// file is updated since last download
+		FilePath timestamp = target.child("." + fileName
+				+ "-timestamp");
+
+		if (!target.exists()) {
+			target.mkdirs();
+		}
+		if (timestamp.exists()
+				&& sourceLastUpdatedTimestamp == timestamp
+						.lastModified()) {
+			listener.getLogger().println("File is up to date");
+			return null;
+		}
+		/*
+		else if (useCache) {
+			listener.getLogger().println("Cache Option selected. Will not download source code from remote URL. Will attempt to run source locally");
+		}
+		*/
+		Plan plan = new Plan();
+		plan.latestURLString = latestURLString;
+		plan.fileName = fileName;
+		plan.headers = headers;
+		plan.target = target;
+		plan.ownsTarget = ownsTarget;
+		plan.timestamp = timestamp;
+		plan.lastModified = sourceLastUpdatedTimestamp;
+		plan.key = key;
+		plan.host = url.getHost();
+		plan.copy = spec.getExtractionMode() == ArtifactSpec.ExtractionMode.COPY;
+		plan.lazy = spec.getExtractionMode() == ArtifactSpec.ExtractionMode.LAZY && isZip(fileName);
+		if (spec.getExtractionMode() == ArtifactSpec.ExtractionMode.LAZY && !plan.lazy) {
+			listener.getLogger().println("Only zip archives can be read lazily, extracting " + fileName);
+		}
+		plan.filter = spec.getFilter();
+		// Only zip archives carry the central directory an incremental sync needs
+		plan.incrementalSync = !plan.copy && !plan.lazy && incremental && isZip(fileName);
+		plan.parallelism = descriptor.getExtractionParallelism();
+		// Both zip engines read the central directory, so they need the archive as a file
+		plan.zipEngine = !plan.copy && !plan.lazy && isZip(fileName) && (plan.incrementalSync || plan.parallelism != 1);
+		// Checked on the download stream itself, the content is never read twice for it
+		plan.checksums = Checksums.fromHeaders(head.headers(), latest.getSha256());
+		return plan;
+	}
+
+	/**
+	 * Transfer stage: brings the artifact to the workspace's node, through the
+	 * agent cache when it is enabled.
+	 *
+	 * @param stream
+	 *            whether the artifact may be streamed into the workspace during
+	 *            extraction instead
+	 * @return the fetched artifact
+	 */
+	private Fetched fetch(Plan plan, FilePath workspace, boolean stream, TaskListener listener)
+			throws IOException, InterruptedException {
+		ArtifactorySCMDescriptorImpl descriptor = (ArtifactorySCMDescriptorImpl) getDescriptor();
+		Fetched fetched = new Fetched();
+		String sha256 = plan.checksums.getSha256();
+		fetched.cache = ArtifactCache.forWorkspace(workspace, descriptor.getCacheMaxSizeBytes());
+		ArtifactCache cache = fetched.cache;
+		if (descriptor.isCacheEnabled() && ArtifactCache.isValidKey(sha256)) {
+			fetched.archive = cache.acquire(sha256);
+			if (fetched.archive != null) {
+				fetched.leased = sha256;
+				listener.getLogger().println("Found sha256 " + sha256 + " in agent cache, skipping download");
+				share(workspace, cache, sha256, descriptor);
+				return fetched;
+			}
+			FilePath temp = cache.createTempFile();
+			try {
+				boolean verified = fetchBlob(temp, cache, workspace, plan.host, plan.job, plan.latestURLString,
+						plan.headers, plan.checksums, plan.queueWait, descriptor, listener);
+				fetched.archive = cache.store(temp, sha256, verified);
+				fetched.leased = sha256;
+			} finally {
+				temp.delete();
+			}
+			listener.getLogger().println("Stored sha256 " + sha256 + " in agent cache "
+					+ cache.getRoot().getRemote());
+			share(workspace, cache, sha256, descriptor);
+		} else if (plan.zipEngine || plan.lazy || descriptor.isDownloadOnAgent() || !stream
+				|| plan.filter.isAuto() && plan.filter.hasPatterns()) {
+			// The central directory sits at the end of the zip, so spool it to the agent first.
+			// Patterns below a stripped top level folder need all entries before the first one is matched too
+			FilePath spool = cache.createTempFile();
+			fetched.spool = spool;
+			try (TransferLimits.Permit permit = TransferLimits.acquire(workspace, plan.host, plan.job,
+					!descriptor.isDownloadOnAgent(), descriptor)) {
+				plan.queueWait.addAndGet(permit.getWaitMillis());
+				transfer(spool, cache, plan.latestURLString, plan.headers, plan.checksums, descriptor, listener);
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				spool.delete();
+				throw e;
+			}
+			fetched.archive = spool;
+		}
+		return fetched;
+	}
+
+	/**
+	 * Downloads a blob missing from an agent cache into a temporary file of the
+	 * cache, from a peer holding it when peer sharing is enabled, or else from
+	 * Artifactory.
+	 *
+	 * @param queueWait
+	 *            gets the time waited for a transfer slot, null to not count it
+	 * @return whether the blob was checked against its checksum
+	 */
+	static boolean fetchBlob(FilePath temp, ArtifactCache cache, FilePath workspace, String host, String job,
+			String url, Map<String, String> headers, Checksums checksums, @CheckForNull AtomicLong queueWait,
+			ArtifactorySCMDescriptorImpl descriptor, TaskListener listener) throws IOException, InterruptedException {
+		// Agents on the same network that hold the blob spare the trip to Artifactory
+		if (descriptor.isPeerSharing() && PeerSharing.fetch(temp, checksums.getSha256(), workspace, listener)) {
+			return true;
+		}
+		try (TransferLimits.Permit permit = TransferLimits.acquire(workspace, host, job,
+				!descriptor.isDownloadOnAgent(), descriptor)) {
+			if (queueWait != null) {
+				queueWait.addAndGet(permit.getWaitMillis());
+			}
+			return transfer(temp, cache, url, headers, checksums, descriptor, listener).isVerified();
+		}
+	}
+
+	/**
+	 * Offers a cached blob to the other agents, when peer sharing is enabled.
+	 * The checkout goes on without it when the peer server cannot start.
+	 */
+	static void share(FilePath workspace, ArtifactCache cache, String sha256,
+			ArtifactorySCMDescriptorImpl descriptor) throws InterruptedException {
+		if (!descriptor.isPeerSharing()) {
+			return;
+		}
+		try {
+			PeerSharing.announce(workspace, cache, sha256, descriptor.getPeerPort(), descriptor.getPeerBindAddress());
+		} catch (IOException e) {
+			LOGGER.log(WARNING, "Unable to share sha256 " + sha256 + " with peers", e);
+		}
+	}
+
+	/**
+	 * Extraction stage: replaces the contents of the artifact's target directory
+	 * with the artifact.
+	 */
+	private void install(Plan plan, Fetched fetched, FilePath workspace, TaskListener listener)
+			throws IOException, InterruptedException {
+		ArtifactorySCMDescriptorImpl descriptor = (ArtifactorySCMDescriptorImpl) getDescriptor();
+		ArtifactoryHttpClient.Settings settings = descriptor.getHttpSettings();
+		String latestURLString = plan.latestURLString;
+		String fileName = plan.fileName;
+		URL url = new URL(latestURLString);
+		FilePath target = plan.target;
+		FilePath archive = fetched.archive;
+		// With a new last modified data aka a new artifact found, the target directory is replaced.
+		// The artifact goes to a staging directory swapped in once it is complete, so the target
+		// directory is never empty or half written and a failed transfer leaves it as it was
+		boolean staged = !plan.incrementalSync && plan.ownsTarget;
+		// Other artifacts share the target directory, so it is not replaced. An artifact checked while it
+		// streams in is still staged, and merged into the target directory once its checksum matched
+		boolean merged = !staged && archive == null;
+		FilePath destination = staged || merged ? WorkspaceSwap.stage(target) : target;
+		try {
+			if (archive != null) {
+				try {
+					if (plan.copy) {
+						listener.getLogger().println("Copying " + fileName + " without extracting");
+						archive.copyTo(destination.child(fileName));
+					} else if (plan.lazy) {
+						// A spool is moved into place, a cached archive is linked
+						boolean move = archive.equals(fetched.spool);
+						int entries = archive.act(new LazyArchive.Keep(destination.getRemote(), plan.key, fileName, plan.filter, move,
+								plan.targetKeys));
+						if (move) {
+							fetched.spool = null;
+						}
+						listener.getLogger().println("Kept " + fileName + " unextracted, indexed " + entries + " entries");
+					} else if (plan.incrementalSync) {
+						IncrementalUnzip.Result result = archive.act(new IncrementalUnzip(target.getRemote(), plan.parallelism, plan.filter));
+						listener.getLogger().println("Incremental sync: " + result);
+					} else if (plan.zipEngine) {
+						listener.getLogger().println("Compression type is zip/jar/war");
+						int entries = archive.act(new ParallelUnzip(destination.getRemote(), plan.parallelism, plan.filter));
+						listener.getLogger().println("Extracted " + entries + " files in parallel");
+					} else {
+						extract(archive, destination, fileName, plan.filter, listener);
+					}
+				} finally {
+					fetched.discard();
+				}
+			} else {
+				Checksums.Verifier verifier = plan.checksums.newVerifier();
+				try (TransferLimits.Permit permit = TransferLimits.acquire(workspace, plan.host, plan.job, true, descriptor)) {
+					plan.queueWait.addAndGet(permit.getWaitMillis());
+					HttpResponse<InputStream> body = ArtifactoryHttpClient.get(settings).send(
+							ArtifactoryHttpClient.request(settings, latestURLString, plan.headers).GET().build(),
+							HttpResponse.BodyHandlers.ofInputStream());
+					// The bytes pass through the controller, within its bandwidth cap
+					InputStream capped = TransferLimits.throttle(body.body());
+					try (CountingInputStream is = new CountingInputStream(verifier != null ? verifier.wrap(capped) : capped)) {
+						ArtifactoryHttpClient.check(body, HttpURLConnection.HTTP_OK);
+
+						if (plan.copy) {
+							listener.getLogger().println("Copying " + fileName + " without extracting");
+							destination.child(fileName).copyFrom(is);
+						} else {
+							// Entries are filtered on the agent while they stream by, skipped ones are never written.
+							// The format is told by the first bytes, a file that is no archive is written as it is.
+							// The stream is pumped to the agent on a thread of its own, so only the agent reads it:
+							// it reads up to the end, past the last entry, before it returns
+							StreamingUnpack.Result result = destination.act(new StreamingUnpack(new RemoteInputStream(
+									is, RemoteInputStream.Flag.GREEDY), fileName, plan.filter));
+							listener.getLogger().println(result);
+						}
+						listener.getLogger().println("Received " + is.getByteCount() + " bytes");
+					}
+				}
+				if (verifier != null) {
+					// Extraction ran while the bytes streamed in, a mismatch leaves the staged files behind
+					verifier.verify(latestURLString);
+				}
+			}
+
+			if (staged) {
+				WorkspaceSwap.swap(target, destination);
+				listener.getLogger().println("Swapped the new files into " + target.getRemote());
+			} else if (merged) {
+				WorkspaceSwap.merge(target, destination);
+				listener.getLogger().println("Merged the new files into " + target.getRemote());
+			}
+		} finally {
+			if ((staged || merged) && destination.exists()) {
+				// Not swapped or merged in, the target directory is left as it was
+				destination.deleteRecursive();
+			}
+		}
+
+		// A zip packaged with a parent directory had it stripped while its entries were written,
+		// so there is no pass moving the children up to the workspace anymore
+
+		listener.getLogger().println(
+				"Downloaded " + latestURLString + " to "
+						+ target.toURI());
+		// update the last modified timestamp of timestamp file
+		plan.timestamp.touch(plan.lastModified);
+	}
+
+	/**
+	 * Resolution stage: resolves all artifacts together, then plans them one
+	 * after the other, completing their plans as it goes. Plans it did not get
+	 * to fail with the reason it stopped.
+	 */
+	private void planAll(List<ArtifactSpec> specs, Map<String, String> headers, ArtifactoryHttpClient.Settings settings,
+			FilePath workspace, LastModifiedDateAction action, String job, AtomicLong queueWait,
+			List<CompletableFuture<Plan>> plans, TaskListener listener) {
+		Exception stopped = new IOException("Resolution stopped");
+		try {
+			List<ArtifactoryItem> resolved = resolveAll(specs, headers, settings, listener);
+			for (int i = 0; i < specs.size(); i++) {
+				ArtifactSpec spec = specs.get(i);
+				try {
+					Plan plan = plan(spec, resolved.get(i), headers, workspace, ownsTarget(spec, specs), action,
+							listener);
+					if (plan != null) {
+						plan.job = job;
+						plan.queueWait = queueWait;
+						plan.targetKeys = targetKeys(spec, specs);
+					}
+					plans.get(i).complete(plan);
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					// Only this artifact fails, the checkout stops when it gets to it
+					plans.get(i).completeExceptionally(e);
+				}
+			}
+		} catch (Exception e) {
+			stopped = e;
+		} finally {
+			for (CompletableFuture<Plan> plan : plans) {
+				plan.completeExceptionally(stopped);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether no other artifact goes to the target directory of an
+	 * artifact, or to a directory inside it.
+	 */
+	private static boolean ownsTarget(ArtifactSpec spec, List<ArtifactSpec> specs) {
+		String target = spec.getTargetDirectory();
+		for (ArtifactSpec other : specs) {
+			String directory = other.getTargetDirectory();
+			if (other != spec && (target.isEmpty() || directory.equals(target) || directory.startsWith(target + "/"))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lists the keys of the artifacts going to the same target directory as an
+	 * artifact, its own included.
+	 */
+	private static List<String> targetKeys(ArtifactSpec spec, List<ArtifactSpec> specs) {
+		List<String> keys = new ArrayList<>();
+		for (ArtifactSpec other : specs) {
+			if (other.getTargetDirectory().equals(spec.getTargetDirectory())) {
+				keys.add(other.getKey());
+			}
+		}
+		return keys;
+	}
+
+	private Future<Fetched> submitFetch(ExecutorService transfers, Future<Plan> planned, FilePath workspace,
+			boolean stream, TaskListener listener) {
+		return transfers.submit(() -> {
+			Plan plan = await(planned);
+			return plan == null ? null : fetch(plan, workspace, stream, listener);
+		});
+	}
+
+	/**
+	 * Waits for a pipeline stage, throwing what failed it.
+	 */
+	private static <T> T await(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * What the resolution stage found for one URL.
+	 */
+	private static final class Plan {
+
+		private String latestURLString;
+
+		private String fileName;
+
+		/** The key builds record the artifact under. */
+		private String key;
+
+		/** The Artifactory host the artifact comes from. */
+		private String host;
+
+		/** The job checking out, which transfers take turns by. */
+		private String job;
+
+		/** The time the checkout's transfers waited for their turn. */
+		private AtomicLong queueWait;
+
+		private Map<String, String> headers;
+
+		private Checksums checksums;
+
+		/** The directory the artifact goes to. */
+		private FilePath target;
+
+		/** Whether no other artifact goes to the target directory, so it may be cleared. */
+		private boolean ownsTarget;
+
+		/** The keys of all artifacts going to the target directory. */
+		private List<String> targetKeys;
+
+		/** Whether the file is copied as it is. */
+		private boolean copy;
+
+		/** Whether the zip is kept and indexed, its entries read on demand. */
+		private boolean lazy;
+
+		/** The archive entries to extract and where they go. */
+		private EntryFilter filter;
+
+		/** The file whose modification time records the extracted artifact. */
+		private FilePath timestamp;
+
+		private long lastModified;
+
+		private boolean incrementalSync;
+
+		private boolean zipEngine;
+
+		private int parallelism;
+	}
+
+	/**
+	 * An artifact the transfer stage brought to the workspace's node.
+	 */
+	private static final class Fetched {
+
+		/** The archive on the node, null when it is streamed during extraction. */
+		private FilePath archive;
+
+		private ArtifactCache cache;
+
+		/** The cache entry held for extraction. */
+		private String leased;
+
+		/** The file the archive was spooled to, outside of the cache. */
+		private FilePath spool;
+
+		void discard() throws IOException, InterruptedException {
+			if (leased != null) {
+				cache.release(leased);
+				leased = null;
+			}
+			if (spool != null) {
+				spool.delete();
+				spool = null;
+			}
+		}
+	}
+
+	/**
+	 * Downloads an artifact into a file on the workspace's node, either through
+	 * the controller or by the agent itself. Interrupted downloads leave a partial
+	 * file behind that the next attempt resumes from. The controller only writes
+	 * a file of its own to download segments or to resume, otherwise it streams
+	 * the bytes to the node.
+	 *
+	 * @param target
+	 *            the file on the node
+	 * @param cache
+	 *            the node's cache, which also keeps partial downloads
+	 * @param url
+	 *            the artifact URL
+	 * @param headers
+	 *            the request headers, credentials included
+	 * @param checksums
+	 *            the expected checksums
+	 * @param descriptor
+	 *            the global configuration
+	 * @param listener
+	 *            the listener
+	 * @return the outcome of the download
+	 */
+	static ArtifactDownload.Result transfer(FilePath target, ArtifactCache cache, String url,
+			Map<String, String> headers, Checksums checksums, ArtifactorySCMDescriptorImpl descriptor,
+			TaskListener listener)
+			throws IOException, InterruptedException {
+		ArtifactDownload.Result result;
+		if (descriptor.isDownloadOnAgent()) {
+			result = target.act(new ArtifactDownload(url, headers, descriptor.getDownloadSegments(), checksums,
+					cache.getRoot().child("partial").getRemote(), descriptor.getHttpSettings()));
+			listener.getLogger().println("Agent downloaded " + result.getBytes() + " bytes");
 		} else {
-			passwordCredentials = null;
+			File home = new File(Jenkins.get().getRootDir(), "artifactory-scm");
+			ArtifactDownload download = new ArtifactDownload(url, headers, descriptor.getDownloadSegments(),
+					checksums, new File(home, "partial").getPath(), descriptor.getHttpSettings()).throttled();
+			if (!download.needsLocalFile()) {
+				// A single connection with nothing to resume, the bytes go straight to the node
+				result = download.streamTo(target);
+			} else {
+				// Ranged writes and partial files need a local file, so the controller downloads into its own home first
+				File tmp = new File(home, "tmp");
+				tmp.mkdirs();
+				File local = File.createTempFile("download", ".part", tmp);
+				try {
+					result = new FilePath(local).act(download);
+					target.copyFrom(new FilePath(local));
+				} finally {
+					Files.deleteIfExists(local.toPath());
+				}
+			}
+			listener.getLogger().println("Downloaded " + result.getBytes() + " bytes through the controller");
+		}
+		if (result.getResumedBytes() > 0) {
+			listener.getLogger().println("Resumed an interrupted download, saved " + result.getResumedBytes() + " bytes");
 		}
-		return passwordCredentials;
+		if (result.isVerified()) {
+			listener.getLogger().println("Checksum verified while downloading");
+		}
+		return result;
+	}
+
+	private static boolean isZip(String fileName) {
+		return fileName.endsWith(".zip") || fileName.endsWith(".jar")
+				|| fileName.endsWith(".war") || fileName.endsWith(".ear");
+	}
+
+	/**
+	 * Extracts an archive that already sits on the workspace's node, so no bytes
+	 * travel over the remoting channel.
+	 *
+	 * @param archive
+	 *            the archive, for example a blob of the agent cache
+	 * @param workspace
+	 *            the workspace
+	 * @param fileName
+	 *            the artifact file name, the file written when it is no archive
+	 * @param filter
+	 *            the entries to extract and where they go
+	 * @param listener
+	 *            the listener
+	 */
+	static void extract(FilePath archive, FilePath workspace, String fileName, EntryFilter filter,
+			TaskListener listener) throws IOException, InterruptedException {
+		StreamingUnpack.Result result = workspace.act(new StreamingUnpack(archive.getRemote(), fileName, filter));
+		listener.getLogger().println(result);
 	}
 
 	/*
@@ -483,29 +1132,28 @@ public class ArtifactorySCM extends SCM {
 			LOGGER.log(ALL, "compareRemoteRevisionWith() Exit >>>");
 			return PollingResult.BUILD_NOW;
 		}
-		LastModifiedDateAction action = lastBuild
-				.getAction(LastModifiedDateAction.class);
-		if (action == null) {
+		// The baseline is what the last build checked out, older builds only recorded the action
+		ArtifactoryRevisionState state = baseline instanceof ArtifactoryRevisionState
+				? (ArtifactoryRevisionState) baseline : revisionsOf(lastBuild);
+		if (state == null) {
 			listener.getLogger()
 					.println(
 							"There are significant changes.\ncompareRemoteRevisionWith() Exit >>>");
 			LOGGER.log(ALL, "compareRemoteRevisionWith() Exit >>>");
 			return PollingResult.SIGNIFICANT;
 		}
-		for (URLTuple tuple : urls) {
-			String urlString = tuple.getUrlString();
+		ArtifactoryHttpClient.Settings settings = ((ArtifactorySCMDescriptorImpl) getDescriptor()).getHttpSettings();
+		Map<String, String> headers = ArtifactoryAuth.forJob(credentialsId, project).getHeaders();
+		for (ArtifactSpec spec : getArtifactSpecs()) {
+			String urlString = spec.getUrl();
 			try {
-				URL url = new URL(urlString);
-				URLConnection conn = url.openConnection();
-				conn.setUseCaches(false);
-				long lastMod = conn.getLastModified();
-				long lastBuildMod = action.getLastModified(urlString);
-				if (lastBuildMod != lastMod) {
-					listener.getLogger().println(
-							"Found change: " + urlString + " modified "
-									+ new Date(lastMod)
-									+ " previous modification was "
-									+ new Date(lastBuildMod));
+				String change = findChange(spec, state.get(spec.getKey()), headers, settings, listener);
+				if (change != null) {
+					listener.getLogger().println("Found change: " + urlString + " " + change);
+					// The build this poll starts must not resolve to the old artifact
+					String repo = urlString.replace("https://", "").split("/")[2];
+					ResolutionCache.get().invalidate(repo);
+					MetadataIndex.get().expire(repo);
 					pollingResult = PollingResult.SIGNIFICANT;
 					break;
 				}
@@ -519,6 +1167,80 @@ public class ArtifactorySCM extends SCM {
 		return pollingResult;
 	}
 
+	/**
+	 * Checks one URL against what the last build downloaded.
+	 *
+	 * The latest artifact comes from the controller-wide poller, which searches
+	 * each repo once per cycle for all jobs. When that search reports a checksum
+	 * it decides on its own, otherwise the artifact is revalidated with a HEAD
+	 * request carrying If-None-Match and If-Modified-Since, so an unchanged
+	 * artifact costs a 304 and no body is ever transferred.
+	 *
+	 * @param spec
+	 *            the configured artifact
+	 * @param revision
+	 *            what the last build checked out, null when it recorded nothing
+	 * @param headers
+	 *            the request headers, credentials included
+	 * @param settings
+	 *            the HTTP client settings
+	 * @param listener
+	 *            the listener
+	 * @return a description of the change, or null when nothing changed
+	 */
+	private String findChange(ArtifactSpec spec, @CheckForNull ArtifactoryRevisionState.Revision revision,
+			Map<String, String> headers,
+			ArtifactoryHttpClient.Settings settings, TaskListener listener) throws IOException, InterruptedException {
+		String urlString = spec.getUrl();
+		String[] urlParts = urlString.replace("https://", "").split("/");
+		ArtifactoryItem latest = ArtifactoryPoller.get().latest(urlString, spec.getLatestVersionTag(), credentialsId,
+				headers, settings, ((ArtifactorySCMDescriptorImpl) getDescriptor()).getPollCycleSeconds(), listener);
+		String latestURLString = latest.toURL(urlParts[0], urlParts[1]);
+		if (revision == null) {
+			// Recorded by an older version of the plugin, nothing to revalidate against
+			return "has no recorded artifact";
+		}
+		if (!revision.getUrl().equals(latestURLString)) {
+			return "now resolves to " + latestURLString + " instead of " + revision.getUrl();
+		}
+		String checksum = revision.getSha256();
+		if (checksum != null && latest.getSha256() != null) {
+			// The shared search already reported the checksum, no request of our own needed
+			return checksum.equalsIgnoreCase(latest.getSha256()) ? null
+					: "checksum changed from " + checksum + " to " + latest.getSha256();
+		}
+
+		Map<String, String> conditional = new HashMap<>(headers);
+		String etag = revision.getETag();
+		if (etag != null) {
+			conditional.put("If-None-Match", etag);
+		}
+		long lastBuildMod = revision.getLastModified();
+		if (lastBuildMod > 0) {
+			conditional.put("If-Modified-Since", DateTimeFormatter.RFC_1123_DATE_TIME
+					.format(Instant.ofEpochMilli(lastBuildMod).atZone(ZoneOffset.UTC)));
+		}
+		HttpResponse<Void> head = ArtifactoryHttpClient.head(settings, latestURLString, conditional);
+		if (head.statusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			return null;
+		}
+		ArtifactoryHttpClient.check(head, HttpURLConnection.HTTP_OK);
+
+		String newETag = head.headers().firstValue("ETag").orElse(null);
+		if (etag != null && newETag != null && !etag.equals(newETag)) {
+			return "ETag changed from " + etag + " to " + newETag;
+		}
+		String newChecksum = head.headers().firstValue("X-Checksum-Sha256").orElse(latest.getSha256());
+		if (checksum != null && newChecksum != null && !checksum.equalsIgnoreCase(newChecksum)) {
+			return "checksum changed from " + checksum + " to " + newChecksum;
+		}
+		long lastMod = ArtifactoryHttpClient.lastModified(head);
+		if (lastMod != lastBuildMod) {
+			return "modified " + new Date(lastMod) + " previous modification was " + new Date(lastBuildMod);
+		}
+		return null;
+	}
+
 	/**
 	 * The Class ArtifactorySCMDescriptorImpl.
 	 */
@@ -526,6 +1248,66 @@ public class ArtifactorySCM extends SCM {
 	public static final class ArtifactorySCMDescriptorImpl extends
 			SCMDescriptor<ArtifactorySCM> {
 
+		/** Whether agents keep downloaded artifacts in a local cache. */
+		private boolean cacheEnabled;
+
+		/** The maximum size of the cache on each agent, in megabytes. */
+		private long cacheMaxSizeMb = 10240;
+
+		/** Whether agents download artifacts themselves instead of the controller streaming them. */
+		private boolean downloadOnAgent;
+
+		/** Parallel ranged connections per download, 1 for a single connection. */
+		private int downloadSegments = 1;
+
+		/** Seconds one search result answers the polls of every job on the same repo. */
+		private int pollCycleSeconds = 60;
+
+		/** Seconds between the delta syncs of the local metadata index, 0 to always search live. */
+		private int indexSyncSeconds = 15;
+
+		/** Seconds a resolved artifact is reused by other builds, 0 to only share searches in flight. */
+		private int resolutionCacheSeconds = 30;
+
+		/** The token webhook calls must present, the webhook is disabled without one. */
+		private Secret webhookToken;
+
+		/** Seconds to establish a connection to Artifactory. */
+		private int connectTimeoutSeconds = 30;
+
+		/** Seconds to wait for Artifactory to answer a request. */
+		private int requestTimeoutSeconds = 300;
+
+		/** Whether requests negotiate HTTP/2 with Artifactory. */
+		private boolean http2 = true;
+
+		/** Threads extracting zip entries on the agent, 0 for one per processor, 1 for serial extraction. */
+		private int extractionParallelism;
+
+		/** Transfers running through the controller at once, across all builds. */
+		private int maxControllerTransfers = 4;
+
+		/** Transfers running into one agent at once, across all builds. */
+		private int maxTransfersPerAgent = 2;
+
+		/** Transfers running against one Artifactory host at once, across all builds. */
+		private int maxTransfersPerHost = 8;
+
+		/** Megabytes per second read through the controller, 0 for no cap. */
+		private int maxControllerBandwidth;
+
+		/** Whether agents fetch cached artifacts from each other before Artifactory, with the cache enabled. */
+		private boolean peerSharing;
+
+		/** The port agents serve cached artifacts to each other on, 0 for any. */
+		private int peerPort;
+
+		/** The address agents serve cached artifacts to each other on, empty for the one they advertise. */
+		private String peerBindAddress;
+
+		/** Idle agents a new latest artifact is copied into the cache of ahead of its builds, 0 for none. */
+		private int prefetchAgents;
+
 		/**
 		 * Instantiates a new artifactory scm descriptor impl.
 		 */
@@ -559,9 +1341,278 @@ public class ArtifactorySCM extends SCM {
 		@Override
 		public boolean configure(StaplerRequest req, JSONObject formData)
 				throws FormException {
+			req.bindJSON(this, formData);
+			save();
 			return true;
 		}
 
+		public boolean isCacheEnabled() {
+			return cacheEnabled;
+		}
+
+		@DataBoundSetter
+		public void setCacheEnabled(boolean cacheEnabled) {
+			this.cacheEnabled = cacheEnabled;
+		}
+
+		public long getCacheMaxSizeMb() {
+			return cacheMaxSizeMb;
+		}
+
+		@DataBoundSetter
+		public void setCacheMaxSizeMb(long cacheMaxSizeMb) {
+			this.cacheMaxSizeMb = cacheMaxSizeMb;
+		}
+
+		long getCacheMaxSizeBytes() {
+			return cacheMaxSizeMb * 1024 * 1024;
+		}
+
+		public boolean isDownloadOnAgent() {
+			return downloadOnAgent;
+		}
+
+		@DataBoundSetter
+		public void setDownloadOnAgent(boolean downloadOnAgent) {
+			this.downloadOnAgent = downloadOnAgent;
+		}
+
+		public int getDownloadSegments() {
+			return downloadSegments;
+		}
+
+		@DataBoundSetter
+		public void setDownloadSegments(int downloadSegments) {
+			this.downloadSegments = Math.max(1, downloadSegments);
+		}
+
+		public FormValidation doCheckDownloadSegments(@QueryParameter final String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		public int getPollCycleSeconds() {
+			return pollCycleSeconds;
+		}
+
+		@DataBoundSetter
+		public void setPollCycleSeconds(int pollCycleSeconds) {
+			this.pollCycleSeconds = Math.max(1, pollCycleSeconds);
+		}
+
+		public FormValidation doCheckPollCycleSeconds(@QueryParameter final String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		public int getIndexSyncSeconds() {
+			return indexSyncSeconds;
+		}
+
+		@DataBoundSetter
+		public void setIndexSyncSeconds(int indexSyncSeconds) {
+			this.indexSyncSeconds = Math.max(0, indexSyncSeconds);
+		}
+
+		public FormValidation doCheckIndexSyncSeconds(@QueryParameter final String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public int getResolutionCacheSeconds() {
+			return resolutionCacheSeconds;
+		}
+
+		@DataBoundSetter
+		public void setResolutionCacheSeconds(int resolutionCacheSeconds) {
+			this.resolutionCacheSeconds = Math.max(0, resolutionCacheSeconds);
+		}
+
+		public FormValidation doCheckResolutionCacheSeconds(@QueryParameter final String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Describes how well the resolution cache works, for the configuration page.
+		 *
+		 * @return the hit and miss counts
+		 */
+		public String getResolutionCacheStatistics() {
+			ResolutionCache cache = ResolutionCache.get();
+			return cache.getHits() + " hits, " + cache.getMisses() + " misses since startup";
+		}
+
+		public Secret getWebhookToken() {
+			return webhookToken;
+		}
+
+		@DataBoundSetter
+		public void setWebhookToken(Secret webhookToken) {
+			this.webhookToken = webhookToken;
+		}
+
+		public int getConnectTimeoutSeconds() {
+			return connectTimeoutSeconds;
+		}
+
+		@DataBoundSetter
+		public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+			this.connectTimeoutSeconds = Math.max(1, connectTimeoutSeconds);
+		}
+
+		public int getRequestTimeoutSeconds() {
+			return requestTimeoutSeconds;
+		}
+
+		@DataBoundSetter
+		public void setRequestTimeoutSeconds(int requestTimeoutSeconds) {
+			this.requestTimeoutSeconds = Math.max(1, requestTimeoutSeconds);
+		}
+
+		public boolean isHttp2() {
+			return http2;
+		}
+
+		@DataBoundSetter
+		public void setHttp2(boolean http2) {
+			this.http2 = http2;
+		}
+
+		/**
+		 * Gets the settings of the shared HTTP client.
+		 *
+		 * @return the settings
+		 */
+		public ArtifactoryHttpClient.Settings getHttpSettings() {
+			return new ArtifactoryHttpClient.Settings(connectTimeoutSeconds, requestTimeoutSeconds, http2);
+		}
+
+		public FormValidation doCheckConnectTimeoutSeconds(@QueryParameter final String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		public FormValidation doCheckRequestTimeoutSeconds(@QueryParameter final String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		public int getExtractionParallelism() {
+			return extractionParallelism;
+		}
+
+		@DataBoundSetter
+		public void setExtractionParallelism(int extractionParallelism) {
+			this.extractionParallelism = Math.max(0, extractionParallelism);
+		}
+
+		public FormValidation doCheckExtractionParallelism(@QueryParameter final String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public int getMaxControllerTransfers() {
+			return maxControllerTransfers;
+		}
+
+		@DataBoundSetter
+		public void setMaxControllerTransfers(int maxControllerTransfers) {
+			this.maxControllerTransfers = Math.max(1, maxControllerTransfers);
+		}
+
+		public FormValidation doCheckMaxControllerTransfers(@QueryParameter final String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		public int getMaxTransfersPerAgent() {
+			return maxTransfersPerAgent;
+		}
+
+		@DataBoundSetter
+		public void setMaxTransfersPerAgent(int maxTransfersPerAgent) {
+			this.maxTransfersPerAgent = Math.max(1, maxTransfersPerAgent);
+		}
+
+		public FormValidation doCheckMaxTransfersPerAgent(@QueryParameter final String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		public int getMaxTransfersPerHost() {
+			// Configurations saved before the setting existed
+			return maxTransfersPerHost > 0 ? maxTransfersPerHost : 8;
+		}
+
+		@DataBoundSetter
+		public void setMaxTransfersPerHost(int maxTransfersPerHost) {
+			this.maxTransfersPerHost = Math.max(1, maxTransfersPerHost);
+		}
+
+		public FormValidation doCheckMaxTransfersPerHost(@QueryParameter final String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		public int getMaxControllerBandwidth() {
+			return maxControllerBandwidth;
+		}
+
+		@DataBoundSetter
+		public void setMaxControllerBandwidth(int maxControllerBandwidth) {
+			this.maxControllerBandwidth = Math.max(0, maxControllerBandwidth);
+		}
+
+		public FormValidation doCheckMaxControllerBandwidth(@QueryParameter final String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public boolean isPeerSharing() {
+			return peerSharing;
+		}
+
+		@DataBoundSetter
+		public void setPeerSharing(boolean peerSharing) {
+			this.peerSharing = peerSharing;
+		}
+
+		public int getPeerPort() {
+			return peerPort;
+		}
+
+		@DataBoundSetter
+		public void setPeerPort(int peerPort) {
+			this.peerPort = Math.max(0, Math.min(65535, peerPort));
+		}
+
+		public FormValidation doCheckPeerPort(@QueryParameter final String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public String getPeerBindAddress() {
+			return peerBindAddress == null ? "" : peerBindAddress;
+		}
+
+		@DataBoundSetter
+		public void setPeerBindAddress(String peerBindAddress) {
+			this.peerBindAddress = peerBindAddress == null ? "" : peerBindAddress.trim();
+		}
+
+		public int getPrefetchAgents() {
+			return prefetchAgents;
+		}
+
+		@DataBoundSetter
+		public void setPrefetchAgents(int prefetchAgents) {
+			this.prefetchAgents = Math.max(0, prefetchAgents);
+		}
+
+		public FormValidation doCheckPrefetchAgents(@QueryParameter final String value) {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public FormValidation doCheckStripComponents(@QueryParameter final String value) {
+			if (value == null || value.trim().isEmpty()) {
+				return FormValidation.ok();
+			}
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public FormValidation doCheckCacheMaxSizeMb(@QueryParameter final String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
 		/**
 		 * Do required check.
 		 * 
@@ -593,10 +1644,12 @@ public class ArtifactorySCM extends SCM {
 					return result.includeCurrentValue(credentialsId);
 				}
 			}
-			List<StandardUsernameCredentials> standardUsernameCredentials = lookupCredentials(
-					StandardUsernameCredentials.class, item, ACL.SYSTEM, Collections.emptyList());
-			for (StandardUsernameCredentials standardUsernameCredential : standardUsernameCredentials) {
-				result.with(standardUsernameCredential);
+			// Username and password, or secret text holding an access token or API key
+			for (StandardCredentials credentials : lookupCredentialsInItem(
+					StandardCredentials.class, item, ACL.SYSTEM2, Collections.emptyList())) {
+				if (ArtifactoryAuth.supports(credentials)) {
+					result.with(credentials);
+				}
 			}
 			return result;
 		}
@@ -605,18 +1658,116 @@ public class ArtifactorySCM extends SCM {
 	}
 
 	/**
-	 * Function to build the URL using the latestVersion Tag
-	 * @return
-	 * @param urlString
-	 * @param latestVersionTag represents the git branch of the code the artifact represents
+	 * Resolves the latest artifact through the controller's resolution cache, so
+	 * builds starting together share one search.
 	 */
+	private ArtifactoryItem resolveCached(String urlString, String latestVersionTag, Map<String, String> headers,
+			ArtifactoryHttpClient.Settings settings, TaskListener listener) throws IOException, InterruptedException {
+		int ttl = ((ArtifactorySCMDescriptorImpl) getDescriptor()).getResolutionCacheSeconds();
+		// Headers without credentials must not share answers with those that have them
+		String owner = headers.isEmpty() ? null : credentialsId;
+		return ResolutionCache.get().resolve(urlString, latestVersionTag, owner, ttl,
+				() -> resolveLatest(urlString, latestVersionTag, headers, settings, listener));
+	}
 
+	/**
+	 * Resolves the latest artifact of every spec through the resolution cache.
+	 * The first spec the cache cannot answer resolves all of them at once, see
+	 * {@link #searchAll}.
+	 *
+	 * @return the latest artifacts, in the order of the specs
+	 */
+	private List<ArtifactoryItem> resolveAll(List<ArtifactSpec> specs, Map<String, String> headers,
+			ArtifactoryHttpClient.Settings settings, TaskListener listener) throws IOException, InterruptedException {
+		if (specs.size() == 1) {
+			ArtifactSpec spec = specs.get(0);
+			return Collections.singletonList(
+					resolveCached(spec.getUrl(), spec.getLatestVersionTag(), headers, settings, listener));
+		}
+		int ttl = ((ArtifactorySCMDescriptorImpl) getDescriptor()).getResolutionCacheSeconds();
+		String owner = headers.isEmpty() ? null : credentialsId;
+		AtomicReference<Map<ArtifactSpec, ArtifactoryItem>> batch = new AtomicReference<>();
+		List<ArtifactoryItem> items = new ArrayList<>();
+		for (ArtifactSpec spec : specs) {
+			items.add(ResolutionCache.get().resolve(spec.getUrl(), spec.getLatestVersionTag(), owner, ttl, () -> {
+				if (batch.get() == null) {
+					batch.set(searchAll(specs, headers, settings, listener));
+				}
+				ArtifactoryItem item = batch.get().get(spec);
+				if (item == null) {
+					String[] url = spec.getUrl().replace("https://", "").split("/");
+					throw new AbortException("No artifact in " + url[2] + " matches "
+							+ namePattern(url[url.length - 1], spec.getLatestVersionTag()));
+				}
+				return item;
+			}));
+		}
+		return items;
+	}
+
+	/**
+	 * Finds the latest artifact of several specs. The metadata index answers
+	 * first, the specs it cannot answer are searched with one {@code $or} query
+	 * per repo instead of one query each.
+	 *
+	 * @return the latest artifact of each spec that matched any
+	 */
+	private Map<ArtifactSpec, ArtifactoryItem> searchAll(List<ArtifactSpec> specs, Map<String, String> headers,
+			ArtifactoryHttpClient.Settings settings, TaskListener listener) throws IOException, InterruptedException {
+		Map<ArtifactSpec, ArtifactoryItem> latest = new IdentityHashMap<>();
+		int indexSync = ((ArtifactorySCMDescriptorImpl) getDescriptor()).getIndexSyncSeconds();
+		// The name patterns to search by host, context and repo
+		Map<String, Map<String, Boolean>> repos = new LinkedHashMap<>();
+		for (ArtifactSpec spec : specs) {
+			String tag = spec.getLatestVersionTag();
+			if (indexSync > 0) {
+				try {
+					ArtifactoryItem indexed = MetadataIndex.get().latest(spec.getUrl(), tag,
+							headers.isEmpty() ? null : credentialsId, headers, settings, indexSync, listener);
+					if (indexed != null) {
+						latest.put(spec, indexed);
+						continue;
+					}
+				} catch (IOException e) {
+					LOGGER.log(WARNING, "Falling back to a live search for " + spec.getUrl(), e);
+				}
+			}
+			String[] url = spec.getUrl().replace("https://", "").split("/");
+			repos.computeIfAbsent(url[0] + "/" + url[1] + "/" + url[2], k -> new LinkedHashMap<>())
+					.put(namePattern(url[url.length - 1], tag), !tag.isEmpty());
+		}
+		for (Map.Entry<String, Map<String, Boolean>> repo : repos.entrySet()) {
+			String[] parts = repo.getKey().split("/");
+			Map<String, ArtifactoryItem> found = ArtifactoryPoller.search(parts[0], parts[1], parts[2], repo.getValue(),
+					headers, settings);
+			listener.getLogger().println("Resolved " + repo.getValue().size() + " artifact pattern(s) of " + parts[2]
+					+ " in one query");
+			for (ArtifactSpec spec : specs) {
+				String[] url = spec.getUrl().replace("https://", "").split("/");
+				if (!latest.containsKey(spec) && repo.getKey().equals(url[0] + "/" + url[1] + "/" + url[2])) {
+					ArtifactoryItem item = found.get(namePattern(url[url.length - 1], spec.getLatestVersionTag()));
+					if (item != null) {
+						latest.put(spec, item);
+					}
+				}
+			}
+		}
+		return latest;
+	}
 
-	public String buildLatestURL(String urlString, String latestVersionTag, TaskListener listener) throws IOException {
+	/**
+	 * Function to find the latest artifact using the latestVersion Tag
+	 * @return the latest artifact, including its checksum when Artifactory reports one
+	 * @param urlString
+	 * @param latestVersionTag represents the git branch of the code the artifact represents
+	 * @param headers the request headers, credentials included
+	 * @param settings the HTTP client settings
+	 */
+	public ArtifactoryItem resolveLatest(String urlString, String latestVersionTag, Map<String, String> headers,
+			ArtifactoryHttpClient.Settings settings, TaskListener listener) throws IOException, InterruptedException {
 		// URL should be the folder, need to reach artifactory API to get request
 		String apiBase = "api/search/aql";
 		String noHttpsURL = urlString.replace("https://", "");
-		String branch = "";
 		// index 0 = artifactory endpoint
 		// index 1 = artifactory
 		// index 2 = repo
@@ -626,54 +1777,56 @@ public class ArtifactorySCM extends SCM {
 
 		String apiRequest = String.format("https://%s/%s/%s", url[0], url[1], apiBase);
 		String payload = "";
+		String include = AQL_INCLUDE;
+		String pattern = namePattern(repoFolder, latestVersionTag);
+
+		// The local index answers without an AQL name scan, the live search only runs on a miss
+		int indexSync = ((ArtifactorySCMDescriptorImpl) getDescriptor()).getIndexSyncSeconds();
+		if (indexSync > 0) {
+			try {
+				ArtifactoryItem indexed = MetadataIndex.get().latest(urlString, latestVersionTag,
+						headers.isEmpty() ? null : credentialsId, headers, settings, indexSync, listener);
+				if (indexed != null) {
+					return indexed;
+				}
+			} catch (IOException e) {
+				LOGGER.log(WARNING, "Falling back to a live search for " + urlString, e);
+			}
+		}
 
 		// Supports legacy way of grabbing without version tag
 		if (latestVersionTag.isEmpty()) {
-			payload = String.format("items.find( { \"repo\":\"%s\", \"name\":{\"$match\" : \"%s-%s*.zip\" } }).sort({\"$desc\":[\"modified\"]}).limit(1)", url[2], repoFolder, branch);
+			payload = String.format("items.find( { \"repo\":\"%s\", \"name\":{\"$match\" : \"%s\" } })%s.sort({\"$desc\":[\"modified\"]}).limit(1)", url[2], pattern, include);
 		}
 		// Gets rid of sort because we can sort ourselves with the build number
+		// Every build of the branch comes back, so only the fields needed to pick one are asked for,
+		// the checksum of the winner comes from the header check of the download
 		else if (latestVersionTag.length() > 0) {
-			branch = latestVersionTag + '*';
-			payload = String.format("items.find( { \"repo\":\"%s\", \"name\":{\"$match\" : \"%s-%s.zip\" } })", url[2], repoFolder, branch);
+			payload = String.format("items.find( { \"repo\":\"%s\", \"name\":{\"$match\" : \"%s\" } }).include(\"repo\", \"path\", \"name\")", url[2], pattern);
 		}
 
-		URL full_url = new URL(apiRequest);
-		HttpURLConnection connection = (HttpURLConnection) full_url.openConnection();
-
-		// Set the appropriate HTTP method and headers for a POST request
-		connection.setRequestMethod("POST");
-		connection.setRequestProperty("Content-Type", "text/plain");
-		connection.setDoOutput(true);
-
-		// Write the payload to the connection's output stream
-		try (OutputStream outputStream = connection.getOutputStream()) {
-			byte[] input = payload.getBytes(StandardCharsets.UTF_8);
-			outputStream.write(input);
-		}
-
-		// Read the response of the API call and grab repo, path, and name
-		// Using Jackson parser to create JSON Map object for "easy" object grabbing
-        InputStream inputStream = connection.getInputStream();
-		ObjectMapper mapper = new ObjectMapper();
-		Map<String, Object> jsonMap = mapper.readValue(inputStream, Map.class);
-        List<Map<String, Object>> results = (List<Map<String, Object>>) jsonMap.get("results");
-		Map<String, Object> finalResult = null;
-
-		// Sort the results by the number at the end of the "name" string
-		if (latestVersionTag.length() > 0) {
-			List<Map<String, Object>> sortedResults = results.stream()
-					.sorted(Comparator.comparingInt(result -> extractNumberFromName((String) result.get("name"))))
-					.collect(Collectors.toList());
-			finalResult = sortedResults.get(sortedResults.size()-1);
-		}
-		// Legacy method, just get first from AQL query's list
-		else {
-			finalResult = results.get(0);
+		// Read the response of the API call and keep the highest build number while it streams by,
+		// the legacy query is already sorted and limited to one result
+		AtomicReference<Map<String, String>> finalResult = new AtomicReference<>();
+		int[] highest = { Integer.MIN_VALUE };
+		ArtifactoryHttpClient.search(settings, apiRequest, payload, headers, result -> {
+			if (latestVersionTag.isEmpty()) {
+				finalResult.compareAndSet(null, result);
+				return;
+			}
+			int number = extractNumberFromName(result.get("name"));
+			if (number >= highest[0]) {
+				highest[0] = number;
+				finalResult.set(result);
+			}
+		});
+		if (finalResult.get() == null) {
+			throw new AbortException("No artifact in " + url[2] + " matches " + pattern);
 		}
 
-		String repo = (String) finalResult.get("repo");
-		String path = (String) finalResult.get("path");
-		String name = (String) finalResult.get("name");
+		String repo = finalResult.get().get("repo");
+		String path = finalResult.get().get("path");
+		String name = finalResult.get().get("name");
 
 		/*
 		// Remove these potential strings from the tag
@@ -682,14 +1835,26 @@ public class ArtifactorySCM extends SCM {
 			name = name.replace(removeables[i], "");
 		}
 		 */
-		String latestURL = String.format("https://%s/%s/%s/%s/%s", url[0], url[1], repo, path, name);
-		return latestURL;
+		return new ArtifactoryItem(repo, path, name, finalResult.get().get("sha256"));
+	}
+
+	/**
+	 * Builds the AQL name pattern of the artifacts a folder URL stands for.
+	 *
+	 * @param repoFolder the last segment of the configured URL
+	 * @param latestVersionTag the version tag, empty for any artifact of the folder
+	 * @return the {@code $match} pattern
+	 */
+	static String namePattern(String repoFolder, String latestVersionTag) {
+		return latestVersionTag.isEmpty() ? repoFolder + "-*.zip" : repoFolder + "-" + latestVersionTag + "*.zip";
 	}
 
 	// Used to help sort the list of artifactory results by build number
-	private static int extractNumberFromName(String name) {
-		String[] parts = name.split("-");
-		String numberPart = parts[parts.length - 1].replace(".zip", "");
+	static int extractNumberFromName(String name) {
+		String numberPart = name.substring(name.lastIndexOf('-') + 1);
+		if (numberPart.endsWith(".zip")) {
+			numberPart = numberPart.substring(0, numberPart.length() - ".zip".length());
+		}
 		return Integer.parseInt(numberPart);
 	}
 
@@ -702,10 +1867,10 @@ public class ArtifactorySCM extends SCM {
 		private final String urlString;
 
 		/** The username. */
-		private String username;
+		private final String username;
 
 		/** The password. */
-		private String password;
+		private final String password;
 
 		/**
 		 * Instantiates a new uRL tuple.
@@ -721,14 +1886,14 @@ public class ArtifactorySCM extends SCM {
 			LOGGER.log(ALL, "URLTuple() Enter >>>");
 			this.urlString = urlString;
 			// In the url is not secured initialize user name and password with
-			// empty strings
+			// empty strings. Requests authenticate through ArtifactoryAuth, never
+			// through a JVM wide Authenticator shared by concurrent builds
 			if (username == null || username.trim().length() == 0) {
 				this.username = "";
 				this.password = "";
 			} else {
 				this.username = username;
 				this.password = password;
-				this.setAuthenticator();
 			}
 			LOGGER.log(ALL, "URLTuple() Exit >>>");
 		}
@@ -759,30 +1924,5 @@ public class ArtifactorySCM extends SCM {
 		public String getPassword() {
 			return password;
 		}
-
-		/**
-		 * The Class SecuredResourceAuthenticator.
-		 */
-		private class SecuredResourceAuthenticator extends Authenticator {
-
-			/*
-			 * (non-Javadoc)
-			 * 
-			 * @see java.net.Authenticator#getPasswordAuthentication()
-			 */
-			public PasswordAuthentication getPasswordAuthentication() {
-				return new PasswordAuthentication(username,
-						password.toCharArray());
-			}
-		}
-
-		/**
-		 * Sets the authenticator.
-		 */
-		public void setAuthenticator() {
-			// clearing cache - we require to clear cache because of JDK bug
-			// AuthCacheValue.setAuthCache(new AuthCacheImpl());
-			Authenticator.setDefault(new SecuredResourceAuthenticator());
-		}
 	}
 }
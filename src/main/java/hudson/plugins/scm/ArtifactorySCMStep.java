@@ -6,6 +6,8 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.export.Exported;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ArtifactorySCMStep extends SCMStep {
 
@@ -14,10 +16,22 @@ public class ArtifactorySCMStep extends SCMStep {
 
     /** The clear workspace. */
     private boolean clearWorkspace;
+
+    /** Sync only changed zip entries instead of re-extracting everything. */
+    private boolean incremental;
     //private boolean useCache;
 
     private String credentialsId;
 
+    /** More artifacts checked out next to the one of the url. */
+    private List<ArtifactSpec> artifacts = new ArrayList<>();
+
+    private String includes;
+
+    private String excludes;
+
+    private Integer stripComponents;
+
     @DataBoundConstructor
     public ArtifactorySCMStep() {
     }
@@ -42,6 +56,16 @@ public class ArtifactorySCMStep extends SCMStep {
         return clearWorkspace;
     }
 
+    @DataBoundSetter
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    @Exported
+    public boolean isIncremental() {
+        return incremental;
+    }
+
     /*
     @DataBoundSetter
     public void setUseCache(boolean useCache) {
@@ -74,10 +98,56 @@ public class ArtifactorySCMStep extends SCMStep {
         return latestVersionTag;
     }
 
+    @DataBoundSetter
+    public void setIncludes(String includes) {
+        this.includes = includes;
+    }
+
+    @Exported
+    public String getIncludes() {
+        return includes;
+    }
+
+    @DataBoundSetter
+    public void setExcludes(String excludes) {
+        this.excludes = excludes;
+    }
+
+    @Exported
+    public String getExcludes() {
+        return excludes;
+    }
+
+    @DataBoundSetter
+    public void setStripComponents(Integer stripComponents) {
+        this.stripComponents = stripComponents;
+    }
+
+    @Exported
+    public Integer getStripComponents() {
+        return stripComponents;
+    }
+
+    @DataBoundSetter
+    public void setArtifacts(List<ArtifactSpec> artifacts) {
+        this.artifacts = artifacts == null ? new ArrayList<>() : new ArrayList<>(artifacts);
+    }
+
+    @Exported
+    public List<ArtifactSpec> getArtifacts() {
+        return artifacts;
+    }
+
     @Nonnull
     @Override
     protected SCM createSCM() {
-        return new ArtifactorySCM(url, latestVersionTag, clearWorkspace, credentialsId);
+        ArtifactorySCM scm = new ArtifactorySCM(url, latestVersionTag, clearWorkspace, credentialsId);
+        scm.setIncremental(incremental);
+        scm.setArtifacts(artifacts);
+        scm.setIncludes(includes);
+        scm.setExcludes(excludes);
+        scm.setStripComponents(stripComponents);
+        return scm;
     }
 
 }
@@ -0,0 +1,228 @@
+package hudson.plugins.scm;
+
+import hudson.Extension;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Job;
+import hudson.model.UnprotectedRootAction;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.csrf.CrumbExclusion;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import jenkins.triggers.SCMTriggerItem;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.verb.POST;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Receives Artifactory "artifact deployed" webhooks and builds the jobs whose
+ * artifacts changed, so those jobs do not have to poll.
+ *
+ * The endpoint sits outside of Jenkins authentication and is protected by a
+ * shared token instead, sent in the {@code X-Artifactory-SCM-Token} header. A
+ * query parameter would leave the token in access and proxy logs, so it is not
+ * accepted. The endpoint stays disabled until a token is set in the global
+ * configuration.
+ */
+@Extension
+public class ArtifactoryWebhook implements UnprotectedRootAction {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(ArtifactoryWebhook.class.getName());
+
+	/** The URL of the endpoint below the Jenkins root. */
+	public static final String URL_NAME = "artifactory-scm-webhook";
+
+	/** The header carrying the token. */
+	public static final String TOKEN_HEADER = "X-Artifactory-SCM-Token";
+
+	/** Event types that put a new artifact in place. */
+	private static final List<String> EVENTS = Arrays.asList("deployed", "copied", "moved");
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return URL_NAME;
+	}
+
+	/**
+	 * Handles one webhook call.
+	 *
+	 * @param req
+	 *            the request
+	 * @return the response, listing the scheduled jobs
+	 */
+	@POST
+	public HttpResponse doIndex(StaplerRequest req) throws IOException {
+		ArtifactorySCM.ArtifactorySCMDescriptorImpl descriptor = Jenkins.get()
+				.getDescriptorByType(ArtifactorySCM.ArtifactorySCMDescriptorImpl.class);
+		Secret expected = descriptor.getWebhookToken();
+		if (expected == null || expected.getPlainText().isEmpty()) {
+			return HttpResponses.errorWithoutStack(404, "The Artifactory SCM webhook is not enabled");
+		}
+		String token = req.getHeader(TOKEN_HEADER);
+		if (token == null || !MessageDigest.isEqual(expected.getPlainText().getBytes(StandardCharsets.UTF_8),
+				token.getBytes(StandardCharsets.UTF_8))) {
+			return HttpResponses.forbidden();
+		}
+
+		JsonNode event;
+		try (InputStream in = req.getInputStream()) {
+			event = new ObjectMapper().readTree(in);
+		}
+		if (event == null || !EVENTS.contains(event.path("event_type").asText())) {
+			return HttpResponses.plainText("Ignored event");
+		}
+		JsonNode data = event.path("data");
+		String repo = data.path("repo_key").asText();
+		String name = data.path("name").asText();
+		if (repo.isEmpty() || name.isEmpty()) {
+			return HttpResponses.errorWithoutStack(400, "The event has no repo_key or name");
+		}
+		// The Artifactory instance the event comes from, jobs of other instances are not built
+		String host;
+		try {
+			host = URI.create(event.path("jpd_origin").asText()).getHost();
+		} catch (IllegalArgumentException e) {
+			host = null;
+		}
+		if (host == null) {
+			return HttpResponses.errorWithoutStack(400, "The event has no jpd_origin");
+		}
+
+		List<String> scheduled = trigger(host, repo, name, data.path("path").asText(), data.path("sha256").asText(null));
+		return HttpResponses.plainText("Scheduled " + scheduled.size() + " job(s)" + (scheduled.isEmpty() ? "" : ": "
+				+ String.join(", ", scheduled)));
+	}
+
+	/**
+	 * Schedules every job with an {@link ArtifactorySCM} that the artifact
+	 * belongs to.
+	 *
+	 * @param host
+	 *            the host name of the Artifactory instance
+	 * @param repo
+	 *            the repo the artifact was deployed to
+	 * @param name
+	 *            the artifact file name
+	 * @param path
+	 *            the artifact path inside the repo
+	 * @param sha256
+	 *            the checksum of the artifact, null when the event has none
+	 * @return the full names of the scheduled jobs
+	 */
+	List<String> trigger(String host, String repo, String name, String path, @CheckForNull String sha256) {
+		// Polls of this repo must not keep answering from the older snapshot
+		ArtifactoryPoller.get().invalidate(repo);
+		ResolutionCache.get().invalidate(repo);
+		MetadataIndex.get().expire(repo);
+		// The path of the event may or may not end with the artifact name
+		String folder = path.equals(name) ? "" : path.endsWith("/" + name)
+				? path.substring(0, path.length() - name.length() - 1) : path;
+		if (sha256 != null) {
+			// Started before the builds are queued, so idle agents get a head start
+			Prefetcher.published(null, new ArtifactoryItem(repo, folder.isEmpty() ? "." : folder, name, sha256));
+		}
+
+		List<String> scheduled = new ArrayList<>();
+		try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+			for (Job<?, ?> job : Jenkins.get().getAllItems(Job.class)) {
+				SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+				if (item == null || !matches(item, host, repo, folder, name)) {
+					continue;
+				}
+				Cause cause = new Cause.RemoteCause("Artifactory", "Deployed " + repo + "/" + path);
+				if (item.scheduleBuild2(0, new CauseAction(cause)) != null) {
+					scheduled.add(job.getFullName());
+				}
+			}
+		}
+		LOGGER.log(Level.FINE, "{0}/{1} scheduled {2}", new Object[] { repo, name, scheduled });
+		return scheduled;
+	}
+
+	private static boolean matches(SCMTriggerItem item, String host, String repo, String folder, String name) {
+		for (SCM scm : item.getSCMs()) {
+			if (!(scm instanceof ArtifactorySCM)) {
+				continue;
+			}
+			for (ArtifactSpec spec : ((ArtifactorySCM) scm).getArtifactSpecs()) {
+				if (matches(spec, host, repo, folder, name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether an artifact is one a spec checks out: the spec URL points
+	 * at the same host and repo, at the folder of the artifact or one above it,
+	 * and the artifact name matches its name pattern.
+	 *
+	 * @param folder
+	 *            the folder of the artifact inside the repo, empty at the top
+	 */
+	static boolean matches(ArtifactSpec spec, String host, String repo, String folder, String name) {
+		String[] url = spec.getUrl().replace("https://", "").split("/");
+		if (url.length < 4 || !url[0].replaceFirst(":\\d+$", "").equalsIgnoreCase(host) || !url[2].equals(repo)) {
+			return false;
+		}
+		String specFolder = String.join("/", Arrays.asList(url).subList(3, url.length));
+		if (!folder.equals(specFolder) && !folder.startsWith(specFolder + "/")) {
+			return false;
+		}
+		String namePattern = ArtifactorySCM.namePattern(url[url.length - 1], spec.getLatestVersionTag());
+		return ArtifactoryPoller.toRegex(namePattern).matcher(name).matches();
+	}
+
+	/**
+	 * Lets webhook calls through without a crumb, as Artifactory cannot get one.
+	 * The token check in {@link ArtifactoryWebhook#doIndex} guards the endpoint
+	 * instead.
+	 */
+	@Extension
+	public static class CrumbExclusionImpl extends CrumbExclusion {
+
+		@Override
+		public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+				throws IOException, ServletException {
+			String pathInfo = req.getPathInfo();
+			if (pathInfo != null && (pathInfo.equals("/" + URL_NAME) || pathInfo.startsWith("/" + URL_NAME + "/"))) {
+				chain.doFilter(req, resp);
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package hudson.plugins.scm;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.http.HttpHeaders;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * The checksums Artifactory reports for an artifact.
+ *
+ * Downloads feed their bytes to a {@link Verifier} while they are written, so
+ * the content is checked without reading the file a second time. Only the
+ * strongest checksum at hand is computed.
+ */
+public final class Checksums implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The expected SHA-256 checksum, or null when unknown. */
+	private final String sha256;
+
+	/** The expected SHA-1 checksum, or null when unknown. */
+	private final String sha1;
+
+	/** The expected MD5 checksum, or null when unknown. */
+	private final String md5;
+
+	/**
+	 * Instantiates new checksums.
+	 *
+	 * @param sha256
+	 *            the expected SHA-256 checksum, or null when unknown
+	 * @param sha1
+	 *            the expected SHA-1 checksum, or null when unknown
+	 * @param md5
+	 *            the expected MD5 checksum, or null when unknown
+	 */
+	public Checksums(@CheckForNull String sha256, @CheckForNull String sha1, @CheckForNull String md5) {
+		this.sha256 = normalize(sha256);
+		this.sha1 = normalize(sha1);
+		this.md5 = normalize(md5);
+	}
+
+	/**
+	 * Reads the {@code X-Checksum-*} headers of an artifact response.
+	 *
+	 * @param headers
+	 *            the response headers
+	 * @param searchSha256
+	 *            the SHA-256 checksum from the AQL search, used when the header is missing
+	 * @return the checksums
+	 */
+	public static Checksums fromHeaders(HttpHeaders headers, @CheckForNull String searchSha256) {
+		return new Checksums(headers.firstValue("X-Checksum-Sha256").orElse(searchSha256),
+				headers.firstValue("X-Checksum-Sha1").orElse(null),
+				headers.firstValue("X-Checksum-Md5").orElse(null));
+	}
+
+	private static String normalize(String value) {
+		return value == null || value.isEmpty() ? null : value.toLowerCase(Locale.ENGLISH);
+	}
+
+	@CheckForNull
+	public String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * Tells whether there is anything to check the content against.
+	 *
+	 * @return true when no checksum is known
+	 */
+	public boolean isEmpty() {
+		return sha256 == null && sha1 == null && md5 == null;
+	}
+
+	/**
+	 * Starts checking a download.
+	 *
+	 * @return the verifier, or null when no checksum is known
+	 */
+	@CheckForNull
+	public Verifier newVerifier() throws IOException {
+		if (sha256 != null) {
+			return new Verifier("SHA-256", sha256);
+		}
+		if (sha1 != null) {
+			return new Verifier("SHA-1", sha1);
+		}
+		if (md5 != null) {
+			return new Verifier("MD5", md5);
+		}
+		return null;
+	}
+
+	/**
+	 * Computes the checksum of the bytes handed to it, in order.
+	 */
+	public static final class Verifier {
+
+		private final String algorithm;
+
+		private final String expected;
+
+		private final MessageDigest digest;
+
+		Verifier(String algorithm, String expected) throws IOException {
+			this.algorithm = algorithm;
+			this.expected = expected;
+			try {
+				this.digest = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+		}
+
+		public void update(byte[] bytes, int offset, int length) {
+			digest.update(bytes, offset, length);
+		}
+
+		public void update(ByteBuffer bytes) {
+			digest.update(bytes);
+		}
+
+		/**
+		 * Wraps a stream so every byte read from it is checked.
+		 *
+		 * @param in
+		 *            the stream
+		 * @return the checked stream
+		 */
+		public InputStream wrap(InputStream in) {
+			return new FilterInputStream(in) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b != -1) {
+						digest.update((byte) b);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						digest.update(b, off, n);
+					}
+					return n;
+				}
+
+				@Override
+				public long skip(long n) throws IOException {
+					// Skipped bytes still count
+					byte[] buffer = new byte[8192];
+					long skipped = 0;
+					while (skipped < n) {
+						int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+						if (read < 0) {
+							break;
+						}
+						skipped += read;
+					}
+					return skipped;
+				}
+
+				@Override
+				public boolean markSupported() {
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * Compares the checksum of everything handed over with the expected one.
+		 *
+		 * @param what
+		 *            the artifact, for the message
+		 * @throws MismatchException
+		 *             when the content differs
+		 */
+		public void verify(String what) throws MismatchException {
+			String actual = ArtifactDownload.hex(digest.digest());
+			if (!actual.equals(expected)) {
+				throw new MismatchException("Checksum mismatch for " + what + ": expected " + algorithm + " "
+						+ expected + " but downloaded " + actual);
+			}
+		}
+	}
+
+	/**
+	 * Thrown when downloaded content does not match its checksum. Retrying the
+	 * same download is pointless, so it aborts the checkout.
+	 */
+	public static final class MismatchException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public MismatchException(String message) {
+			super(message);
+		}
+	}
+}
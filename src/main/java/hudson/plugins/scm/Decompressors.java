@@ -0,0 +1,313 @@
+package hudson.plugins.scm;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * The compression formats artifacts are unpacked from, told apart by the
+ * magic bytes they start with rather than by the artifact file name.
+ *
+ * Decompression runs on a thread of its own, ahead of the caller, so
+ * inflating the next blocks overlaps with parsing and writing the entries of
+ * the previous ones. Like pigz, this is as far as a single gzip, xz or zstd
+ * stream can be split up, their blocks depend on the ones before them.
+ */
+public final class Decompressors {
+
+	/** The most bytes any format needs to be recognized. */
+	static final int MAGIC_LENGTH = 6;
+
+	/** The size of the chunks handed over by the decompression thread. */
+	private static final int CHUNK = 65536;
+
+	/** The chunks the decompression thread may run ahead. */
+	private static final int READ_AHEAD = 32;
+
+	/** The milliseconds a close waits for the decompression thread, which is left to die on its own after. */
+	private static final long JOIN_TIMEOUT = 5000;
+
+	public static final Decompressor GZIP = new Decompressor("gzip", new byte[] { 0x1f, (byte) 0x8b }, ".gz", ".tgz") {
+		@Override
+		public InputStream open(InputStream in) throws IOException {
+			// Reads concatenated members too, as written by parallel compressors
+			return new GZIPInputStream(in, CHUNK);
+		}
+	};
+
+	public static final Decompressor BZIP2 = new Decompressor("bzip2", new byte[] { 'B', 'Z', 'h' }, ".bz2", ".tbz2") {
+		@Override
+		public InputStream open(InputStream in) throws IOException {
+			return new BZip2CompressorInputStream(in, true);
+		}
+	};
+
+	public static final Decompressor XZ = new Decompressor("xz", new byte[] { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 }, ".xz", ".txz") {
+		@Override
+		public InputStream open(InputStream in) throws IOException {
+			return new XZCompressorInputStream(in, true);
+		}
+	};
+
+	public static final Decompressor ZSTD = new Decompressor("zstd", new byte[] { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd }, ".zst", ".tzst") {
+		@Override
+		public InputStream open(InputStream in) throws IOException {
+			return new ZstdCompressorInputStream(in);
+		}
+	};
+
+	/** The known formats, in the order they are tried. */
+	private static final List<Decompressor> REGISTRY = new CopyOnWriteArrayList<>(Arrays.asList(GZIP, BZIP2, XZ, ZSTD));
+
+	private Decompressors() {
+	}
+
+	/**
+	 * Adds a format. It must be registered on the agents too, by code that runs
+	 * there before any checkout.
+	 *
+	 * @param decompressor
+	 *            the format
+	 */
+	public static void register(Decompressor decompressor) {
+		REGISTRY.add(0, decompressor);
+	}
+
+	/**
+	 * Finds the format a stream is compressed with. The stream is left where it
+	 * was.
+	 *
+	 * @param in
+	 *            the stream, supporting mark
+	 * @return the format, or null when the stream is not compressed with a known
+	 *         one
+	 */
+	@CheckForNull
+	public static Decompressor detect(InputStream in) throws IOException {
+		byte[] magic = new byte[MAGIC_LENGTH];
+		in.mark(MAGIC_LENGTH);
+		int length;
+		try {
+			length = in.readNBytes(magic, 0, MAGIC_LENGTH);
+		} finally {
+			in.reset();
+		}
+		for (Decompressor decompressor : REGISTRY) {
+			if (decompressor.matches(magic, length)) {
+				return decompressor;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decompresses a stream on a thread of its own.
+	 *
+	 * @param decompressor
+	 *            the format of the stream
+	 * @param in
+	 *            the compressed stream
+	 * @return the decompressed stream
+	 */
+	public static InputStream openReadAhead(Decompressor decompressor, InputStream in) throws IOException {
+		return new ReadAheadInputStream(decompressor.open(in), decompressor.getName());
+	}
+
+	/**
+	 * A compression format.
+	 */
+	public abstract static class Decompressor {
+
+		private final String name;
+
+		private final byte[] magic;
+
+		private final List<String> suffixes;
+
+		/**
+		 * Instantiates a new decompressor.
+		 *
+		 * @param name
+		 *            the name of the format, for the log
+		 * @param magic
+		 *            the bytes a stream in the format starts with, at most
+		 *            {@value Decompressors#MAGIC_LENGTH}
+		 * @param suffixes
+		 *            the file name suffixes of the format, the last ones standing
+		 *            for a compressed tar
+		 */
+		protected Decompressor(String name, byte[] magic, String... suffixes) {
+			if (magic.length > MAGIC_LENGTH) {
+				throw new IllegalArgumentException("Magic of " + name + " is longer than " + MAGIC_LENGTH + " bytes");
+			}
+			this.name = name;
+			this.magic = magic.clone();
+			this.suffixes = Arrays.asList(suffixes);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		boolean matches(byte[] bytes, int length) {
+			if (length < magic.length) {
+				return false;
+			}
+			for (int i = 0; i < magic.length; i++) {
+				if (bytes[i] != magic[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Gets the name of a file decompressed from a file of the given name.
+		 *
+		 * @param fileName
+		 *            the compressed file name
+		 * @return the name with the suffix of the format removed, or replaced by
+		 *         .tar for the short tar suffixes
+		 */
+		public String strip(String fileName) {
+			for (int i = 0; i < suffixes.size(); i++) {
+				String suffix = suffixes.get(i);
+				if (fileName.endsWith(suffix) && fileName.length() > suffix.length()) {
+					String base = fileName.substring(0, fileName.length() - suffix.length());
+					return i == 0 ? base : base + ".tar";
+				}
+			}
+			return fileName;
+		}
+
+		/**
+		 * Opens the decompressed stream.
+		 *
+		 * @param in
+		 *            the compressed stream
+		 * @return the decompressed stream
+		 */
+		public abstract InputStream open(InputStream in) throws IOException;
+	}
+
+	/**
+	 * Reads a stream on a thread of its own, up to {@link #READ_AHEAD} chunks
+	 * ahead of the caller.
+	 */
+	private static final class ReadAheadInputStream extends InputStream {
+
+		/** Marks the end of the stream in the queue. */
+		private static final byte[] END = new byte[0];
+
+		private final InputStream in;
+
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(READ_AHEAD);
+
+		private final Thread thread;
+
+		/** What failed the reading thread. */
+		private volatile Throwable failure;
+
+		private byte[] chunk;
+
+		private int position;
+
+		private boolean closed;
+
+		ReadAheadInputStream(InputStream in, String name) {
+			this.in = in;
+			this.thread = new Thread(this::fill, "ArtifactorySCM " + name + " decompression");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void fill() {
+			try {
+				while (true) {
+					byte[] bytes = new byte[CHUNK];
+					int n = in.readNBytes(bytes, 0, CHUNK);
+					if (n <= 0) {
+						break;
+					}
+					chunks.put(n == CHUNK ? bytes : Arrays.copyOf(bytes, n));
+				}
+			} catch (InterruptedException e) {
+				// Closed by the reader
+				return;
+			} catch (IOException | RuntimeException e) {
+				failure = e;
+			}
+			try {
+				chunks.put(END);
+			} catch (InterruptedException e) {
+				// Closed by the reader
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (chunk == null || position == chunk.length) {
+				if (chunk == END) {
+					return -1;
+				}
+				try {
+					chunk = chunks.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while decompressing");
+				}
+				position = 0;
+				if (chunk == END) {
+					if (failure != null) {
+						throw failure instanceof IOException ? (IOException) failure : new IOException(failure);
+					}
+					return -1;
+				}
+			}
+			int n = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			thread.interrupt();
+			try {
+				// Unblocks the thread when it waits on the compressed stream, which the interrupt may not
+				in.close();
+			} finally {
+				chunks.clear();
+				try {
+					thread.join(JOIN_TIMEOUT);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package hudson.plugins.scm;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Decides which archive entries are extracted and where they go.
+ *
+ * Leading path components are stripped first, then the remaining path is
+ * matched against Ant style include and exclude patterns, so {@code bin/**}
+ * selects the bin folder of a bundle whatever its top level folder is called.
+ * Entries are filtered while they are read, an excluded entry is never written.
+ */
+public final class EntryFilter implements Serializable {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** Strips the single top level folder when every entry sits below one. */
+	public static final int AUTO = -1;
+
+	/** Extracts everything, with the single top level folder stripped. */
+	public static final EntryFilter ALL = new EntryFilter(null, null, AUTO);
+
+	private final List<String> includes;
+
+	private final List<String> excludes;
+
+	private final int stripComponents;
+
+	/**
+	 * Instantiates a new entry filter.
+	 *
+	 * @param includes
+	 *            comma or space separated patterns, empty for every entry
+	 * @param excludes
+	 *            comma or space separated patterns, empty for none
+	 * @param stripComponents
+	 *            the leading path components to strip, or {@link #AUTO}
+	 */
+	public EntryFilter(@CheckForNull String includes, @CheckForNull String excludes, int stripComponents) {
+		this.includes = split(includes);
+		this.excludes = split(excludes);
+		this.stripComponents = Math.max(AUTO, stripComponents);
+	}
+
+	private static List<String> split(String patterns) {
+		List<String> list = new ArrayList<>();
+		if (patterns == null) {
+			return list;
+		}
+		for (String pattern : patterns.split("[,\\s]+")) {
+			pattern = pattern.replace('\\', '/');
+			if (pattern.startsWith("/")) {
+				pattern = pattern.substring(1);
+			}
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			// Like Ant, a pattern ending in a slash stands for everything below it
+			list.add(pattern.endsWith("/") ? pattern + "**" : pattern);
+		}
+		return list;
+	}
+
+	/**
+	 * Tells whether the top level folder to strip depends on all entries.
+	 *
+	 * @return true in {@link #AUTO} mode
+	 */
+	public boolean isAuto() {
+		return stripComponents == AUTO;
+	}
+
+	/**
+	 * Tells whether entries are selected by include or exclude patterns.
+	 *
+	 * @return true when there is a pattern
+	 */
+	public boolean hasPatterns() {
+		return !includes.isEmpty() || !excludes.isEmpty();
+	}
+
+	/**
+	 * Tells whether every entry is extracted as it is.
+	 *
+	 * @return true when there is nothing to filter or strip
+	 */
+	public boolean isNone() {
+		return includes.isEmpty() && excludes.isEmpty() && stripComponents == 0;
+	}
+
+	/**
+	 * Maps an archive entry to the path it is extracted to.
+	 *
+	 * @param name
+	 *            the entry name
+	 * @param root
+	 *            the top level folder stripped in {@link #AUTO} mode, with its
+	 *            trailing slash, empty for none
+	 * @return the path below the target directory, or null when the entry is
+	 *         skipped
+	 */
+	@CheckForNull
+	public String map(String name, String root) {
+		String path = name.replace('\\', '/');
+		if (stripComponents == AUTO) {
+			if (!path.startsWith(root)) {
+				return null;
+			}
+			path = path.substring(root.length());
+		} else {
+			for (int i = 0; i < stripComponents; i++) {
+				int slash = path.indexOf('/');
+				if (slash < 0) {
+					return null;
+				}
+				path = path.substring(slash + 1);
+			}
+		}
+		if (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		if (path.isEmpty()) {
+			return null;
+		}
+		return matches(path) ? path : null;
+	}
+
+	private boolean matches(String path) {
+		boolean included = includes.isEmpty();
+		for (String pattern : includes) {
+			if (SelectorUtils.matchPath(pattern, path)) {
+				included = true;
+				break;
+			}
+		}
+		if (!included) {
+			return false;
+		}
+		for (String pattern : excludes) {
+			if (SelectorUtils.matchPath(pattern, path)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "includes " + includes + ", excludes " + excludes + ", strip "
+				+ (stripComponents == AUTO ? "top folder" : String.valueOf(stripComponents));
+	}
+}
@@ -0,0 +1,277 @@
+package hudson.plugins.scm;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Brings a workspace in line with a zip archive without wiping it first.
+ *
+ * A manifest of the entries written by the previous sync (path, size and CRC from
+ * the zip central directory) is kept in the workspace. Only entries that are new
+ * or changed are written, and files whose entries disappeared from the archive are
+ * deleted. Files that never came from the archive are left alone.
+ *
+ * Entries are mapped through an {@link EntryFilter}, so entries it excludes are
+ * never written and files of entries that became excluded are deleted like
+ * those of removed entries.
+ */
+public class IncrementalUnzip extends MasterToSlaveFileCallable<IncrementalUnzip.Result> {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The manifest file name inside the workspace. */
+	static final String MANIFEST = ".artifactory-scm-manifest";
+
+	private static final String HEADER = "# artifactory-scm manifest v1";
+
+	/** The workspace path on the agent. */
+	private final String target;
+
+	/** The number of threads writing changed entries, 0 for one per processor. */
+	private final int parallelism;
+
+	/** The entries to extract and where they go. */
+	private final EntryFilter filter;
+
+	/**
+	 * Instantiates a new incremental unzip.
+	 *
+	 * @param target
+	 *            the workspace path on the agent
+	 * @param parallelism
+	 *            the number of threads writing changed entries, 0 for one per processor
+	 * @param filter
+	 *            the entries to extract and where they go
+	 */
+	public IncrementalUnzip(String target, int parallelism, EntryFilter filter) {
+		this.target = target;
+		this.parallelism = parallelism;
+		this.filter = filter;
+	}
+
+	public Result invoke(File archive, VirtualChannel channel) throws IOException, InterruptedException {
+		File workspace = new File(target);
+		File manifest = new File(workspace, MANIFEST);
+		Map<String, Entry> previous = readManifest(manifest);
+		Map<String, Entry> current = new LinkedHashMap<>();
+		Result result = new Result();
+
+		try (ZipFile zip = new ZipFile(archive)) {
+			String root = filter.isAuto() ? commonRoot(zip) : "";
+			Map<ZipArchiveEntry, File> changed = new LinkedHashMap<>();
+			for (Enumeration<ZipArchiveEntry> en = zip.getEntries(); en.hasMoreElements();) {
+				ZipArchiveEntry e = en.nextElement();
+				String path = filter.map(e.getName(), root);
+				if (path == null) {
+					continue;
+				}
+				File file = resolve(workspace, path);
+				if (e.isDirectory()) {
+					file.mkdirs();
+					continue;
+				}
+				Entry entry = new Entry(e.getCrc(), e.getSize());
+				current.put(path, entry);
+				if (entry.equals(previous.get(path)) && file.isFile() && file.length() == e.getSize()) {
+					result.unchanged++;
+					continue;
+				}
+				changed.put(e, file);
+			}
+			ParallelUnzip.writeAll(zip, changed, parallelism);
+			result.written = changed.size();
+		}
+
+		for (String path : previous.keySet()) {
+			if (current.containsKey(path)) {
+				continue;
+			}
+			File file = resolve(workspace, path);
+			if (Files.deleteIfExists(file.toPath())) {
+				result.deleted++;
+			}
+			pruneEmptyParents(file.getParentFile(), workspace);
+		}
+		writeManifest(manifest, current);
+		return result;
+	}
+
+	/**
+	 * Writes one entry, keeping its unix mode and modification time.
+	 */
+	static void write(ZipFile zip, ZipArchiveEntry e, File file) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		try (InputStream in = zip.getInputStream(e)) {
+			Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		int mode = e.getUnixMode();
+		if ((mode & 0100) != 0) {
+			file.setExecutable(true, (mode & 011) == 0);
+		}
+		if (e.getTime() > 0) {
+			file.setLastModified(e.getTime());
+		}
+	}
+
+	/**
+	 * Finds the single top level folder all entries share, or an empty string.
+	 */
+	static String commonRoot(ZipFile zip) {
+		String root = null;
+		for (Enumeration<ZipArchiveEntry> en = zip.getEntries(); en.hasMoreElements();) {
+			String name = en.nextElement().getName();
+			int slash = name.indexOf('/');
+			if (slash < 0) {
+				// A file at the top level, nothing to strip
+				return "";
+			}
+			String top = name.substring(0, slash + 1);
+			if (root == null) {
+				root = top;
+			} else if (!root.equals(top)) {
+				return "";
+			}
+		}
+		return root == null ? "" : root;
+	}
+
+	/**
+	 * Resolves an entry path inside the workspace, refusing entries that would
+	 * escape it.
+	 */
+	static File resolve(File workspace, String path) throws IOException {
+		File file = new File(workspace, path);
+		String base = workspace.getCanonicalPath() + File.separator;
+		if (!file.getCanonicalPath().startsWith(base)) {
+			throw new IOException("Archive entry " + path + " is outside of the workspace");
+		}
+		return file;
+	}
+
+	private static void pruneEmptyParents(File dir, File workspace) {
+		while (dir != null && !dir.equals(workspace)) {
+			String[] children = dir.list();
+			if (children == null || children.length > 0 || !dir.delete()) {
+				return;
+			}
+			dir = dir.getParentFile();
+		}
+	}
+
+	private static Map<String, Entry> readManifest(File manifest) throws IOException {
+		if (!manifest.isFile()) {
+			return Collections.emptyMap();
+		}
+		Map<String, Entry> entries = new HashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			if (!HEADER.equals(line)) {
+				// Unknown format, behave as if nothing was extracted before
+				return Collections.emptyMap();
+			}
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", 3);
+				if (parts.length == 3) {
+					entries.put(parts[2], new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+				}
+			}
+		}
+		return entries;
+	}
+
+	private static void writeManifest(File manifest, Map<String, Entry> entries) throws IOException {
+		File temp = new File(manifest.getPath() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(HEADER);
+			writer.newLine();
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				writer.write(e.getValue().crc + "\t" + e.getValue().size + "\t" + e.getKey());
+				writer.newLine();
+			}
+		}
+		Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * A manifest line.
+	 */
+	private static final class Entry {
+
+		private final long crc;
+
+		private final long size;
+
+		Entry(long crc, long size) {
+			this.crc = crc;
+			this.size = size;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry)) {
+				return false;
+			}
+			Entry other = (Entry) o;
+			return crc == other.crc && size == other.size;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(crc, size);
+		}
+	}
+
+	/**
+	 * What a sync changed in the workspace.
+	 */
+	public static final class Result implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private int written;
+
+		private int unchanged;
+
+		private int deleted;
+
+		public int getWritten() {
+			return written;
+		}
+
+		public int getUnchanged() {
+			return unchanged;
+		}
+
+		public int getDeleted() {
+			return deleted;
+		}
+
+		@Override
+		public String toString() {
+			return written + " written, " + unchanged + " unchanged, " + deleted + " deleted";
+		}
+	}
+}
@@ -2,9 +2,11 @@ package hudson.plugins.scm;
 
 import java.io.IOException;
 import java.text.DateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 
@@ -27,6 +29,15 @@ public class LastModifiedDateAction extends AbstractModelObject implements Actio
 	/** The last modified. */
 	private HashMap<String, Long> lastModified = new HashMap<String, Long>();
 
+	/** The artifact each configured URL resolved to. */
+	private HashMap<String, String> resolvedUrls = new HashMap<String, String>();
+
+	/** The ETag of each downloaded artifact. */
+	private HashMap<String, String> etags = new HashMap<String, String>();
+
+	/** The SHA-256 checksum of each downloaded artifact. */
+	private HashMap<String, String> checksums = new HashMap<String, String>();
+
 	/** The build. */
 	private final Run<?, ?> build;
 
@@ -75,6 +86,93 @@ public class LastModifiedDateAction extends AbstractModelObject implements Actio
 		lastModified.put(url, lastModifiedTimeStamp);
 	}
 
+	/**
+	 * Gets the artifact URL the configured URL resolved to.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the artifact URL, or null when not recorded
+	 */
+	public String getResolvedUrl(String url) {
+		return resolvedUrls == null ? null : resolvedUrls.get(url);
+	}
+
+	/**
+	 * Sets the artifact URL the configured URL resolved to.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param resolvedUrl
+	 *            the artifact URL
+	 */
+	public void setResolvedUrl(String url, String resolvedUrl) {
+		if (resolvedUrls == null) {
+			resolvedUrls = new HashMap<String, String>();
+		}
+		resolvedUrls.put(url, resolvedUrl);
+	}
+
+	/**
+	 * Gets the configured URLs an artifact URL was recorded for.
+	 * 
+	 * @return the keys
+	 */
+	public Set<String> getKeys() {
+		return resolvedUrls == null ? Collections.<String>emptySet() : resolvedUrls.keySet();
+	}
+
+	/**
+	 * Gets the ETag of the downloaded artifact.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the ETag, or null when not recorded
+	 */
+	public String getETag(String url) {
+		return etags == null ? null : etags.get(url);
+	}
+
+	/**
+	 * Sets the ETag of the downloaded artifact.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param etag
+	 *            the ETag, or null when the server sent none
+	 */
+	public void setETag(String url, String etag) {
+		if (etags == null) {
+			etags = new HashMap<String, String>();
+		}
+		etags.put(url, etag);
+	}
+
+	/**
+	 * Gets the SHA-256 checksum of the downloaded artifact.
+	 * 
+	 * @param url
+	 *            the url
+	 * @return the checksum, or null when not recorded
+	 */
+	public String getChecksum(String url) {
+		return checksums == null ? null : checksums.get(url);
+	}
+
+	/**
+	 * Sets the SHA-256 checksum of the downloaded artifact.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param checksum
+	 *            the checksum, or null when unknown
+	 */
+	public void setChecksum(String url, String checksum) {
+		if (checksums == null) {
+			checksums = new HashMap<String, String>();
+		}
+		checksums.put(url, checksum);
+	}
+
 	/**
 	 * Gets the url dates.
 	 * 
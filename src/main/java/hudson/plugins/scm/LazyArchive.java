@@ -0,0 +1,508 @@
+package hudson.plugins.scm;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A zip artifact kept as it is in the workspace, its entries read on demand.
+ *
+ * Instead of extracting, a lazy checkout keeps the archive below
+ * {@value #DIRECTORY} in the target directory and writes an index next to it:
+ * the local header offset, sizes, compression method and CRC of every entry
+ * the {@link EntryFilter} selects, under the path it maps the entry to. An
+ * entry is read by mapping its bytes from the archive with a read only
+ * {@link FileChannel}, so the central directory is never parsed again and
+ * nothing else of the archive is touched.
+ *
+ * Several artifacts may share a target directory, each keeping its own archive
+ * and index. A checkout removes the kept archives of artifacts it no longer
+ * checks out there, and two kept archives claiming the same path fail the read
+ * rather than one silently shadowing the other.
+ */
+public final class LazyArchive implements Closeable {
+
+	/** The directory inside the target directory holding the kept archives. */
+	static final String DIRECTORY = ".artifactory-scm-lazy";
+
+	private static final String HEADER = "# artifactory-scm archive index v1";
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+	private static final int LOCAL_HEADER_LENGTH = 30;
+
+	/** The indexed entries of all kept archives, by path. */
+	private final Map<String, Entry> entries;
+
+	/** The channels opened on the kept archives, by archive. */
+	private final Map<File, FileChannel> channels = new HashMap<>();
+
+	private LazyArchive(Map<String, Entry> entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Opens the archives a lazy checkout kept in a directory.
+	 *
+	 * @param target
+	 *            the target directory of the checkout
+	 * @return the archives, empty when none was kept there
+	 * @throws IOException
+	 *             when two kept archives have an entry under the same path
+	 */
+	public static LazyArchive open(File target) throws IOException {
+		Map<String, Entry> entries = new HashMap<>();
+		File[] indexes = new File(target, DIRECTORY).listFiles((dir, name) -> name.endsWith(".index"));
+		if (indexes != null) {
+			for (File index : indexes) {
+				Map<String, Entry> indexed = new HashMap<>();
+				readIndex(index, indexed);
+				for (Map.Entry<String, Entry> e : indexed.entrySet()) {
+					Entry other = entries.putIfAbsent(e.getKey(), e.getValue());
+					if (other != null) {
+						throw new IOException("Kept archives " + other.archive.getName() + " and "
+								+ e.getValue().archive.getName() + " in " + target + " both have an entry " + e.getKey());
+					}
+				}
+			}
+		}
+		return new LazyArchive(entries);
+	}
+
+	/**
+	 * Lists the paths of the entries that can be read.
+	 *
+	 * @return the paths, sorted
+	 */
+	public Set<String> list() {
+		return Collections.unmodifiableSet(new TreeSet<>(entries.keySet()));
+	}
+
+	public boolean contains(String path) {
+		return entries.containsKey(normalize(path));
+	}
+
+	/**
+	 * Reads an entry. The stream checks the CRC of the entry when it reaches
+	 * its end.
+	 *
+	 * @param path
+	 *            the path of the entry, as it would have been extracted
+	 * @return the content of the entry
+	 * @throws FileNotFoundException
+	 *             when no kept archive has the entry
+	 */
+	public InputStream read(String path) throws IOException {
+		Entry entry = entries.get(normalize(path));
+		if (entry == null) {
+			throw new FileNotFoundException("No kept archive has an entry " + path);
+		}
+		if (entry.compressedSize > Integer.MAX_VALUE) {
+			throw new IOException("Entry " + path + " is too large to map");
+		}
+		FileChannel channel = channel(entry.archive);
+		ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining()) {
+			if (channel.read(header, entry.offset + header.position()) < 0) {
+				throw new EOFException("Truncated local header of " + path + " in " + entry.archive);
+			}
+		}
+		if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+			throw new IOException("No local header for " + path + " at offset " + entry.offset + " of " + entry.archive);
+		}
+		// The extra field of the local header may differ from the one in the central directory
+		long data = entry.offset + LOCAL_HEADER_LENGTH + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+		ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, data, entry.compressedSize);
+		InputStream in;
+		if (entry.method == ZipArchiveEntry.STORED) {
+			in = new BufferInputStream(bytes);
+		} else if (entry.method == ZipArchiveEntry.DEFLATED) {
+			in = new EntryInflaterInputStream(new BufferInputStream(bytes));
+		} else {
+			throw new IOException("Entry " + path + " uses unsupported compression method " + entry.method);
+		}
+		return new CheckedEntryStream(in, entry, path);
+	}
+
+	private synchronized FileChannel channel(File archive) throws IOException {
+		FileChannel channel = channels.get(archive);
+		if (channel == null) {
+			channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+			channels.put(archive, channel);
+		}
+		return channel;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		IOException failure = null;
+		for (FileChannel channel : channels.values()) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		channels.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static String normalize(String path) {
+		String normalized = path.replace('\\', '/');
+		while (normalized.startsWith("/")) {
+			normalized = normalized.substring(1);
+		}
+		return normalized;
+	}
+
+	private static void readIndex(File index, Map<String, Entry> entries) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			if (!HEADER.equals(line)) {
+				// Written by another version, the next checkout rewrites it
+				return;
+			}
+			line = reader.readLine();
+			if (line == null) {
+				return;
+			}
+			File archive = new File(index.getParentFile(), line.split("\t", 2)[0]);
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", 6);
+				if (fields.length != 6) {
+					continue;
+				}
+				entries.put(fields[5], new Entry(archive, Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+						Long.parseLong(fields[2]), Integer.parseInt(fields[3]), Long.parseLong(fields[4])));
+			}
+		}
+	}
+
+	/**
+	 * Where the bytes of one entry are.
+	 */
+	private static final class Entry {
+
+		private final File archive;
+
+		/** The offset of the local header. */
+		private final long offset;
+
+		private final long compressedSize;
+
+		private final long size;
+
+		private final int method;
+
+		private final long crc;
+
+		Entry(File archive, long offset, long compressedSize, long size, int method, long crc) {
+			this.archive = archive;
+			this.offset = offset;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.method = method;
+			this.crc = crc;
+		}
+	}
+
+	/**
+	 * Reads a mapped region.
+	 */
+	private static final class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	/**
+	 * Inflates raw deflate data, freeing the inflater when closed.
+	 */
+	private static final class EntryInflaterInputStream extends InflaterInputStream {
+
+		private boolean eof;
+
+		EntryInflaterInputStream(InputStream in) {
+			super(in, new Inflater(true), 65536);
+		}
+
+		@Override
+		protected void fill() throws IOException {
+			if (eof) {
+				throw new EOFException("Unexpected end of deflated entry");
+			}
+			len = in.read(buf, 0, buf.length);
+			if (len == -1) {
+				// Like ZipFile, hand the inflater the dummy byte it may need in nowrap mode
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				inf.end();
+			}
+		}
+	}
+
+	/**
+	 * Checks the size and CRC of an entry once all of it was read.
+	 */
+	private static final class CheckedEntryStream extends InputStream {
+
+		private final InputStream in;
+
+		private final Entry entry;
+
+		private final String path;
+
+		private final CRC32 crc = new CRC32();
+
+		private long read;
+
+		CheckedEntryStream(InputStream in, Entry entry, String path) {
+			this.in = in;
+			this.entry = entry;
+			this.path = path;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				crc.update(b, off, n);
+				read += n;
+			} else if (n < 0 && (read != entry.size || crc.getValue() != entry.crc)) {
+				throw new IOException("Entry " + path + " of " + entry.archive + " is corrupt");
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Keeps a downloaded zip in the target directory and indexes it, in place of
+	 * extracting it, and removes the kept archives of artifacts that no longer go
+	 * there. Invoked on the downloaded archive.
+	 */
+	public static final class Keep extends MasterToSlaveFileCallable<Integer> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The target directory path on the agent. */
+		private final String target;
+
+		/** The key of the artifact, naming the kept archive and its index. */
+		private final String key;
+
+		/** The artifact file name. */
+		private final String fileName;
+
+		/** The entries indexed and the paths they are read under. */
+		private final EntryFilter filter;
+
+		/** Whether the archive is a spool file that may be moved rather than linked. */
+		private final boolean move;
+
+		/** The keys of all artifacts going to the target directory, whose kept archives stay. */
+		private final ArrayList<String> owners;
+
+		/**
+		 * Instantiates a new keep.
+		 *
+		 * @param target
+		 *            the target directory path on the agent
+		 * @param key
+		 *            the key of the artifact
+		 * @param fileName
+		 *            the artifact file name
+		 * @param filter
+		 *            the entries indexed and the paths they are read under
+		 * @param move
+		 *            whether the archive may be moved, false when it belongs to the
+		 *            agent cache
+		 * @param owners
+		 *            the keys of all artifacts the checkout puts in the target
+		 *            directory, this one included
+		 */
+		public Keep(String target, String key, String fileName, EntryFilter filter, boolean move,
+				Collection<String> owners) {
+			this.target = target;
+			this.key = key;
+			this.fileName = fileName;
+			this.filter = filter;
+			this.move = move;
+			this.owners = new ArrayList<>(owners);
+		}
+
+		public Integer invoke(File archive, VirtualChannel channel) throws IOException, InterruptedException {
+			File directory = new File(target, DIRECTORY);
+			directory.mkdirs();
+			String name = name(key);
+			File kept = new File(directory, name + ".zip");
+			File temp = File.createTempFile(".keep", ".tmp", directory);
+			try {
+				if (move) {
+					Files.move(archive.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} else {
+					link(archive, temp);
+				}
+				Files.move(temp.toPath(), kept.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(temp.toPath());
+			}
+
+			File index = File.createTempFile(".index", ".tmp", directory);
+			int count = 0;
+			try {
+				try (ZipFile zip = new ZipFile(kept);
+						BufferedWriter writer = Files.newBufferedWriter(index.toPath(), StandardCharsets.UTF_8)) {
+					String root = filter.isAuto() ? IncrementalUnzip.commonRoot(zip) : "";
+					writer.write(HEADER);
+					writer.newLine();
+					writer.write(kept.getName() + "\t" + fileName);
+					writer.newLine();
+					for (Enumeration<ZipArchiveEntry> en = zip.getEntries(); en.hasMoreElements();) {
+						ZipArchiveEntry e = en.nextElement();
+						String path = e.isDirectory() ? null : filter.map(e.getName(), root);
+						if (path == null || path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+							continue;
+						}
+						writer.write(e.getLocalHeaderOffset() + "\t" + e.getCompressedSize() + "\t" + e.getSize() + "\t"
+								+ e.getMethod() + "\t" + e.getCrc() + "\t" + path);
+						writer.newLine();
+						count++;
+					}
+				}
+				Files.move(index.toPath(), new File(directory, name + ".index").toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(index.toPath());
+			}
+			removeOthers(directory);
+			return count;
+		}
+
+		/**
+		 * Removes the kept archives and indexes of artifacts no longer checked out
+		 * into the target directory. Temporary files of concurrent keeps start with
+		 * a dot and are left alone.
+		 */
+		private void removeOthers(File directory) throws IOException {
+			Set<String> names = new HashSet<>();
+			names.add(name(key));
+			for (String owner : owners) {
+				names.add(name(owner));
+			}
+			File[] files = directory.listFiles((dir, file) -> file.endsWith(".zip") || file.endsWith(".index"));
+			if (files == null) {
+				return;
+			}
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.startsWith(".") && !names.contains(name.substring(0, name.lastIndexOf('.')))) {
+					Files.deleteIfExists(file.toPath());
+				}
+			}
+		}
+
+		/**
+		 * Shares the bytes of a cached archive, which the cache may evict later,
+		 * copying them only when the file system cannot link.
+		 */
+		private static void link(File archive, File temp) throws IOException {
+			Files.delete(temp.toPath());
+			try {
+				Files.createLink(temp.toPath(), archive.toPath());
+			} catch (IOException | UnsupportedOperationException e) {
+				Files.copy(archive.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		private static String name(String key) throws IOException {
+			try {
+				return ArtifactDownload.hex(MessageDigest.getInstance("SHA-256")
+						.digest(key.getBytes(StandardCharsets.UTF_8)));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+}
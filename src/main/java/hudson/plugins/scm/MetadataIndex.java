@@ -0,0 +1,364 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * On-disk index of the artifacts of each repo folder, kept on the controller.
+ *
+ * Every folder the plugin resolves gets an index of its artifacts, with the
+ * build numbers of each branch kept sorted. The index is filled by one full
+ * search and then kept current with searches for the artifacts modified since
+ * the last one, so the latest build of a branch is a map lookup instead of an
+ * AQL name scan. The index is rebuilt from scratch once a day to forget
+ * artifacts that were deleted, and sooner when a checkout finds the artifact
+ * the index answered with is gone.
+ */
+@Extension
+public class MetadataIndex {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(MetadataIndex.class.getName());
+
+	private static final String HEADER = "# artifactory-scm index v1";
+
+	/** How often an index is rebuilt from scratch. */
+	private static final long FULL_SYNC_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	/** The indexes by host, context, repo, folder and credentials. */
+	private final ConcurrentMap<String, Index> indexes = new ConcurrentHashMap<>();
+
+	/**
+	 * Gets the index of this controller.
+	 *
+	 * @return the index
+	 */
+	public static MetadataIndex get() {
+		return ExtensionList.lookupSingleton(MetadataIndex.class);
+	}
+
+	/**
+	 * Looks up the latest artifact of a folder, bringing the index up to date
+	 * first when its last sync is older than the given interval.
+	 *
+	 * @param urlString
+	 *            the configured folder URL
+	 * @param latestVersionTag
+	 *            the version tag, empty for the most recently modified artifact
+	 * @param credentialsId
+	 *            the credentials the searches run with, may be null
+	 * @param headers
+	 *            the request headers, credentials included
+	 * @param settings
+	 *            the HTTP client settings
+	 * @param syncSeconds
+	 *            how old the last sync may be
+	 * @param listener
+	 *            the listener
+	 * @return the latest artifact, or null when the index knows none
+	 */
+	@CheckForNull
+	public ArtifactoryItem latest(String urlString, String latestVersionTag, String credentialsId,
+			Map<String, String> headers, ArtifactoryHttpClient.Settings settings, int syncSeconds,
+			TaskListener listener) throws IOException, InterruptedException {
+		String[] url = urlString.replace("https://", "").split("/");
+		String key = url[0] + "/" + url[1] + "/" + url[2] + "/" + url[url.length - 1] + "#" + credentialsId;
+		File file = fileFor(key);
+		Index index = indexes.computeIfAbsent(key, k -> new Index(url[0], url[1], url[2], url[url.length - 1], file));
+		synchronized (index) {
+			long now = System.currentTimeMillis();
+			if (!index.loaded) {
+				index.load();
+			}
+			if (now - index.lastFullSync >= FULL_SYNC_MILLIS) {
+				index.sync(headers, settings, true, listener);
+			} else if (now - index.lastDeltaSync >= syncSeconds * 1000L) {
+				index.sync(headers, settings, false, listener);
+			}
+			Index.Item item = index.latest(latestVersionTag);
+			return item == null ? null : new ArtifactoryItem(index.repo, item.path, item.name, item.sha256);
+		}
+	}
+
+	/**
+	 * Makes the next lookup of every folder of a repo sync first, after a
+	 * webhook or a poll reported a change there.
+	 *
+	 * @param repo
+	 *            the repo
+	 */
+	public void expire(String repo) {
+		for (Index index : indexes.values()) {
+			if (index.repo.equals(repo)) {
+				synchronized (index) {
+					index.lastDeltaSync = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes the next lookup of every folder of a repo rebuild its index from
+	 * scratch, after an artifact the index answered with turned out to be
+	 * deleted. Searches for modified artifacts never report deletions.
+	 *
+	 * @param repo
+	 *            the repo
+	 */
+	public void rebuild(String repo) {
+		for (Index index : indexes.values()) {
+			if (index.repo.equals(repo)) {
+				synchronized (index) {
+					index.lastFullSync = 0;
+				}
+			}
+		}
+	}
+
+	private static File fileFor(String key) throws IOException {
+		File dir = new File(new File(Jenkins.get().getRootDir(), "artifactory-scm"), "index");
+		byte[] hash = ArtifactDownload.digest("SHA-256", key.getBytes(StandardCharsets.UTF_8));
+		return new File(dir, ArtifactDownload.hex(hash) + ".idx");
+	}
+
+	/**
+	 * The artifacts of one folder.
+	 */
+	private static final class Index {
+
+		private final String host;
+
+		private final String context;
+
+		private final String repo;
+
+		private final String folder;
+
+		private final File file;
+
+		/** The artifacts by name. */
+		private final Map<String, Item> items = new HashMap<>();
+
+		/** The artifacts by branch and build number. */
+		private final Map<String, NavigableMap<Integer, Item>> branches = new HashMap<>();
+
+		/** The most recently modified artifact. */
+		private Item newest;
+
+		/** The highest modification time seen, on the Artifactory clock. */
+		private long lastModified;
+
+		/** When the index was last rebuilt, on the controller clock. */
+		private long lastFullSync;
+
+		/** When the index was last brought up to date, on the controller clock. */
+		private long lastDeltaSync;
+
+		private boolean loaded;
+
+		Index(String host, String context, String repo, String folder, File file) {
+			this.host = host;
+			this.context = context;
+			this.repo = repo;
+			this.folder = folder;
+			this.file = file;
+		}
+
+		/**
+		 * Finds the latest artifact the same way the AQL search would.
+		 */
+		Item latest(String latestVersionTag) {
+			if (latestVersionTag.isEmpty()) {
+				return newest;
+			}
+			Item best = null;
+			int bestNumber = Integer.MIN_VALUE;
+			for (Map.Entry<String, NavigableMap<Integer, Item>> e : branches.entrySet()) {
+				String branch = e.getKey();
+				NavigableMap<Integer, Item> builds = e.getValue();
+				if (branch.startsWith(latestVersionTag)) {
+					// Every build of this branch matches the tag
+					Map.Entry<Integer, Item> last = builds.lastEntry();
+					if (last.getKey() >= bestNumber) {
+						bestNumber = last.getKey();
+						best = last.getValue();
+					}
+				} else if (latestVersionTag.startsWith(branch + "-")) {
+					// The tag reaches into the build number, like main-1 matching main-12
+					String prefix = latestVersionTag.substring(branch.length() + 1);
+					for (Map.Entry<Integer, Item> build : builds.descendingMap().entrySet()) {
+						if (String.valueOf(build.getKey()).startsWith(prefix) && build.getKey() >= bestNumber) {
+							bestNumber = build.getKey();
+							best = build.getValue();
+							break;
+						}
+					}
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Searches for all artifacts of the folder, or only those modified since
+		 * the last search.
+		 */
+		void sync(Map<String, String> headers, ArtifactoryHttpClient.Settings settings, boolean full,
+				TaskListener listener) throws IOException, InterruptedException {
+			long started = System.currentTimeMillis();
+			String since = "";
+			if (!full) {
+				// Greater or equal, artifacts modified in the same millisecond must not slip through
+				since = String.format(", \"modified\":{\"$gte\" : \"%s\"}", Instant.ofEpochMilli(lastModified));
+			}
+			String payload = String.format("items.find( { \"repo\":\"%s\", \"name\":{\"$match\" : \"%s\" }%s })%s",
+					repo, ArtifactorySCM.namePattern(folder, ""), since, ArtifactorySCM.AQL_INCLUDE);
+			String apiRequest = String.format("https://%s/%s/api/search/aql", host, context);
+			if (full) {
+				items.clear();
+				branches.clear();
+				newest = null;
+				lastModified = 0;
+			}
+			long results = ArtifactoryHttpClient.search(settings, apiRequest, payload, headers,
+					result -> add(new Item(result.get("path"), result.get("name"), modified(result.get("modified")),
+							result.get("sha256"))));
+			if (full) {
+				lastFullSync = started;
+			}
+			lastDeltaSync = started;
+			if (full || results > 0) {
+				save();
+			}
+			LOGGER.log(FINE, "{0} sync of {1}/{2}: {3} results",
+					new Object[] { full ? "Full" : "Delta", repo, folder, results });
+			if (full) {
+				listener.getLogger().println("Indexed " + items.size() + " artifact(s) of " + repo + "/" + folder);
+			}
+		}
+
+		private void add(Item item) {
+			if (item.name == null) {
+				return;
+			}
+			items.put(item.name, item);
+			lastModified = Math.max(lastModified, item.modified);
+			if (newest == null || item.modified >= newest.modified) {
+				newest = item;
+			}
+			String prefix = folder + "-";
+			if (!item.name.startsWith(prefix) || !item.name.endsWith(".zip")) {
+				return;
+			}
+			String middle = item.name.substring(prefix.length(), item.name.length() - ".zip".length());
+			int dash = middle.lastIndexOf('-');
+			String branch = dash < 0 ? "" : middle.substring(0, dash);
+			try {
+				int number = Integer.parseInt(middle.substring(dash + 1));
+				branches.computeIfAbsent(branch, b -> new TreeMap<>()).put(number, item);
+			} catch (NumberFormatException e) {
+				// Not a build of a branch, only reachable without a version tag
+			}
+		}
+
+		private static long modified(String value) {
+			try {
+				return value == null ? 0 : OffsetDateTime.parse(value).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				return 0;
+			}
+		}
+
+		void load() {
+			loaded = true;
+			if (!file.isFile()) {
+				return;
+			}
+			try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+				if (!HEADER.equals(reader.readLine())) {
+					return;
+				}
+				String[] sync = reader.readLine().split("\t");
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] parts = line.split("\t", -1);
+					add(new Item(parts[0], parts[1], Long.parseLong(parts[2]), parts[3].isEmpty() ? null : parts[3]));
+				}
+				lastFullSync = Long.parseLong(sync[0]);
+				// A restart may have missed changes, the first lookup brings the index up to date
+				lastDeltaSync = 0;
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(WARNING, "Ignoring unreadable index " + file, e);
+				items.clear();
+				branches.clear();
+				newest = null;
+				lastModified = 0;
+				lastFullSync = 0;
+			}
+		}
+
+		private void save() throws IOException {
+			File dir = file.getParentFile();
+			dir.mkdirs();
+			File temp = new File(dir, file.getName() + ".tmp");
+			try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+				writer.write(HEADER);
+				writer.newLine();
+				writer.write(String.valueOf(lastFullSync));
+				writer.newLine();
+				for (Item item : items.values()) {
+					writer.write(item.path + "\t" + item.name + "\t" + item.modified + "\t"
+							+ (item.sha256 == null ? "" : item.sha256));
+					writer.newLine();
+				}
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		/**
+		 * One indexed artifact.
+		 */
+		private static final class Item {
+
+			private final String path;
+
+			private final String name;
+
+			private final long modified;
+
+			private final String sha256;
+
+			Item(String path, String name, long modified, String sha256) {
+				this.path = path;
+				this.name = name;
+				this.modified = modified;
+				this.sha256 = sha256;
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package hudson.plugins.scm;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Extracts a zip archive on the agent, inflating and writing entries in parallel.
+ *
+ * The archive has to be a file on the agent, because the entries are located
+ * through the central directory at its end. Folders are created up front, then
+ * files are written on a bounded fork-join pool, largest first so one big entry
+ * does not end up last on a single thread. Entries are filtered and their
+ * leading folders stripped by an {@link EntryFilter} before anything is written.
+ */
+public class ParallelUnzip extends MasterToSlaveFileCallable<Integer> {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The workspace path on the agent. */
+	private final String target;
+
+	/** The number of threads, 0 for one per processor of the agent. */
+	private final int parallelism;
+
+	/** The entries to extract and where they go. */
+	private final EntryFilter filter;
+
+	/**
+	 * Instantiates a new parallel unzip.
+	 *
+	 * @param target
+	 *            the workspace path on the agent
+	 * @param parallelism
+	 *            the number of threads, 0 for one per processor of the agent
+	 * @param filter
+	 *            the entries to extract and where they go
+	 */
+	public ParallelUnzip(String target, int parallelism, EntryFilter filter) {
+		this.target = target;
+		this.parallelism = parallelism;
+		this.filter = filter;
+	}
+
+	public Integer invoke(File archive, VirtualChannel channel) throws IOException, InterruptedException {
+		File workspace = new File(target);
+		try (ZipFile zip = new ZipFile(archive)) {
+			String root = filter.isAuto() ? IncrementalUnzip.commonRoot(zip) : "";
+			Map<ZipArchiveEntry, File> files = new LinkedHashMap<>();
+			for (Enumeration<ZipArchiveEntry> en = zip.getEntries(); en.hasMoreElements();) {
+				ZipArchiveEntry e = en.nextElement();
+				String path = filter.map(e.getName(), root);
+				if (path == null) {
+					continue;
+				}
+				File file = IncrementalUnzip.resolve(workspace, path);
+				if (e.isDirectory()) {
+					file.mkdirs();
+				} else {
+					files.put(e, file);
+				}
+			}
+			writeAll(zip, files, parallelism);
+			return files.size();
+		}
+	}
+
+	/**
+	 * Writes zip entries to their files on a bounded pool.
+	 *
+	 * @param zip
+	 *            the open archive
+	 * @param files
+	 *            the entries and the files they go to
+	 * @param parallelism
+	 *            the number of threads, 0 for one per processor
+	 */
+	static void writeAll(final ZipFile zip, Map<ZipArchiveEntry, File> files, int parallelism)
+			throws IOException, InterruptedException {
+		if (files.isEmpty()) {
+			return;
+		}
+		// Parents first, so the writers never race on mkdirs
+		for (File file : files.values()) {
+			File parent = file.getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+		}
+		List<Map.Entry<ZipArchiveEntry, File>> work = new ArrayList<>(files.entrySet());
+		work.sort(Comparator.comparingLong((Map.Entry<ZipArchiveEntry, File> e) -> e.getKey().getCompressedSize()).reversed());
+
+		int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		threads = Math.max(1, Math.min(threads, work.size()));
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<ForkJoinTask<?>> tasks = new ArrayList<>(work.size());
+			for (final Map.Entry<ZipArchiveEntry, File> e : work) {
+				tasks.add(pool.submit(() -> {
+					try {
+						IncrementalUnzip.write(zip, e.getKey(), e.getValue());
+					} catch (IOException x) {
+						throw new UncheckedIOException(x);
+					}
+				}));
+			}
+			for (ForkJoinTask<?> task : tasks) {
+				task.get();
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) cause).getCause();
+			}
+			throw new IOException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,574 @@
+package hudson.plugins.scm;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Lets agents fetch cached artifacts from each other instead of from
+ * Artifactory.
+ *
+ * Every agent taking part serves the verified blobs of its
+ * {@link ArtifactCache} over HTTP, on the configured address or else the one it
+ * advertises. Only the controller learns the secret an agent made up when its
+ * server started, and hands a checkout a ticket for the one blob it needs,
+ * valid for {@value #TICKET_MINUTES} minutes. The controller is the tracker:
+ * it records which nodes stored or used which blob, and a checkout missing a
+ * blob in its own cache tries those peers first. The blob is checked against
+ * its SHA-256 checksum while it is received; a peer that is gone, stalls, no
+ * longer has the blob or sends something else is forgotten, and the checkout
+ * tries the next one and then Artifactory.
+ */
+public final class PeerSharing {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(PeerSharing.class.getName());
+
+	/** The header carrying the ticket a request proves it comes from a checkout with. */
+	static final String TOKEN_HEADER = "X-Artifactory-SCM-Peer-Token";
+
+	/** How long a ticket for a blob is valid, enough for clocks of the controller and agents a little apart. */
+	static final int TICKET_MINUTES = 10;
+
+	private static final String TICKET_MAC = "HmacSHA256";
+
+	/** Overrides the address an agent advertises, for agents with several networks. */
+	static final String HOST_PROPERTY = PeerSharing.class.getName() + ".host";
+
+	/** The peers a checkout tries before it falls back to Artifactory. */
+	private static final int MAX_PEERS = 3;
+
+	/** The blobs the tracker remembers holders for, the least recently used forgotten first. */
+	private static final int MAX_BLOBS = 10000;
+
+	/** The blobs one agent uploads at once. */
+	private static final int SERVER_THREADS = 4;
+
+	/** Where the peer server of each node listens, by node name. Controller side. */
+	private static final Map<String, Endpoint> ENDPOINTS = new ConcurrentHashMap<>();
+
+	/** The nodes holding each blob, by SHA-256 checksum. Controller side. */
+	private static final Map<String, Set<String>> HOLDERS = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+			return size() > MAX_BLOBS;
+		}
+	};
+
+	/** The peer server of this JVM, on an agent. */
+	private static Server server;
+
+	private PeerSharing() {
+	}
+
+	/**
+	 * Tells the tracker a node holds a blob, starting the node's peer server
+	 * if it is not running yet.
+	 *
+	 * @param workspace
+	 *            a workspace on the node
+	 * @param cache
+	 *            the cache of the node
+	 * @param sha256
+	 *            the checksum of the blob
+	 * @param port
+	 *            the port the peer server listens on, 0 for any
+	 * @param bindAddress
+	 *            the address the peer server listens on, empty for the address
+	 *            the agent advertises
+	 */
+	public static void announce(FilePath workspace, ArtifactCache cache, String sha256, int port, String bindAddress)
+			throws IOException, InterruptedException {
+		String node = nodeName(workspace);
+		// Cheap when the server runs, and finds out about agents that restarted
+		ENDPOINTS.put(node, cache.getRoot().act(new Start(port, bindAddress)));
+		synchronized (HOLDERS) {
+			HOLDERS.computeIfAbsent(sha256, k -> new LinkedHashSet<>()).add(node);
+		}
+	}
+
+	/**
+	 * Fetches a blob from a peer holding it.
+	 *
+	 * @param temp
+	 *            the file on the node of the workspace to receive the blob
+	 * @param sha256
+	 *            the checksum of the blob
+	 * @param workspace
+	 *            the workspace
+	 * @param listener
+	 *            the listener
+	 * @return true when a peer sent the verified blob, false to fall back to
+	 *         Artifactory
+	 */
+	public static boolean fetch(FilePath temp, String sha256, FilePath workspace, TaskListener listener)
+			throws InterruptedException {
+		String self = nodeName(workspace);
+		for (String peer : peers(sha256, self)) {
+			Endpoint endpoint = ENDPOINTS.get(peer);
+			if (endpoint == null) {
+				continue;
+			}
+			String failure;
+			try {
+				failure = temp.act(new Fetch(endpoint.blob(sha256), endpoint.ticket(sha256), endpoint.toString(), sha256));
+			} catch (IOException e) {
+				failure = e.toString();
+			}
+			if (failure == null) {
+				listener.getLogger().println("Fetched sha256 " + sha256 + " from peer " + describe(peer));
+				return true;
+			}
+			listener.getLogger().println("Peer " + describe(peer) + " could not send sha256 " + sha256 + ": " + failure);
+			forget(peer, sha256);
+		}
+		return false;
+	}
+
+	private static List<String> peers(String sha256, String self) {
+		synchronized (HOLDERS) {
+			Set<String> holders = HOLDERS.get(sha256);
+			List<String> peers = new ArrayList<>();
+			if (holders != null) {
+				for (String holder : holders) {
+					if (!holder.equals(self) && peers.size() < MAX_PEERS) {
+						peers.add(holder);
+					}
+				}
+			}
+			// Spread the uploads over the holders
+			Collections.shuffle(peers);
+			return peers;
+		}
+	}
+
+	private static void forget(String node, String sha256) {
+		synchronized (HOLDERS) {
+			Set<String> holders = HOLDERS.get(sha256);
+			if (holders != null) {
+				holders.remove(node);
+				if (holders.isEmpty()) {
+					HOLDERS.remove(sha256);
+				}
+			}
+		}
+	}
+
+	private static String nodeName(FilePath workspace) {
+		Computer computer = workspace.toComputer();
+		return computer == null ? "" : computer.getName();
+	}
+
+	private static String describe(String node) {
+		return node.isEmpty() ? "built-in node" : node;
+	}
+
+	/**
+	 * Signs a ticket for one blob.
+	 *
+	 * @param secret
+	 *            the secret of the peer server
+	 * @param sha256
+	 *            the checksum of the blob
+	 * @param expires
+	 *            when the ticket expires, in milliseconds since the epoch
+	 * @return the signature
+	 */
+	static String sign(byte[] secret, String sha256, long expires) {
+		try {
+			Mac mac = Mac.getInstance(TICKET_MAC);
+			mac.init(new SecretKeySpec(secret, TICKET_MAC));
+			return ArtifactDownload.hex(mac.doFinal((sha256 + "/" + expires).getBytes(StandardCharsets.UTF_8)));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(TICKET_MAC + " is not available", e);
+		}
+	}
+
+	/**
+	 * Tells whether a ticket was signed for a blob and is still valid.
+	 *
+	 * @param ticket
+	 *            the ticket, its expiry and signature separated by a dash
+	 */
+	static boolean isValid(byte[] secret, String sha256, @CheckForNull String ticket) {
+		if (ticket == null) {
+			return false;
+		}
+		int dash = ticket.indexOf('-');
+		long expires;
+		try {
+			expires = Long.parseLong(ticket.substring(0, Math.max(0, dash)));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return expires >= System.currentTimeMillis() && MessageDigest.isEqual(
+				sign(secret, sha256, expires).getBytes(StandardCharsets.UTF_8),
+				ticket.substring(dash + 1).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Where a peer server listens, with the secret it signs tickets with.
+	 * Stays on the controller.
+	 */
+	public static final class Endpoint implements Serializable {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		private final String host;
+
+		private final int port;
+
+		/** The secret tickets are signed with. */
+		private final byte[] secret;
+
+		Endpoint(String host, int port, byte[] secret) {
+			this.host = host;
+			this.port = port;
+			this.secret = secret.clone();
+		}
+
+		URI blob(String sha256) {
+			String address = host.indexOf(':') >= 0 ? "[" + host + "]" : host;
+			return URI.create("http://" + address + ":" + port + "/sha256/" + sha256);
+		}
+
+		/**
+		 * Issues a ticket for one blob, so that a fetching agent never learns
+		 * the secret of the peer server.
+		 */
+		String ticket(String sha256) {
+			long expires = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(TICKET_MINUTES);
+			return expires + "-" + sign(secret, sha256, expires);
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port;
+		}
+	}
+
+	/**
+	 * Starts the peer server of a node, invoked on the root of its cache.
+	 */
+	static final class Start extends MasterToSlaveFileCallable<Endpoint> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		private final int port;
+
+		private final String bindAddress;
+
+		Start(int port, String bindAddress) {
+			this.port = port;
+			this.bindAddress = bindAddress;
+		}
+
+		public Endpoint invoke(File root, VirtualChannel channel) throws IOException {
+			synchronized (PeerSharing.class) {
+				if (server == null || !server.root.equals(root) || server.port != port
+						|| !server.bindAddress.equals(bindAddress)) {
+					if (server != null) {
+						server.stop();
+					}
+					server = new Server(root, port, bindAddress);
+				}
+				return server.endpoint;
+			}
+		}
+	}
+
+	/**
+	 * Serves the blobs of a cache on an agent.
+	 */
+	private static final class Server {
+
+		private final File root;
+
+		/** The port configured, 0 for any. */
+		private final int port;
+
+		/** The address configured, empty for the advertised one. */
+		private final String bindAddress;
+
+		private final HttpServer http;
+
+		/** The threads serving the requests, stopped with the server. */
+		private final ExecutorService executor;
+
+		private final Endpoint endpoint;
+
+		Server(File root, int port, String bindAddress) throws IOException {
+			this.root = root;
+			this.port = port;
+			this.bindAddress = bindAddress;
+			byte[] secret = new byte[32];
+			new SecureRandom().nextBytes(secret);
+			String host = advertisedHost(bindAddress);
+			// Not all interfaces, only the network peers are on
+			InetAddress bind = InetAddress.getByName(bindAddress.isEmpty() ? host : bindAddress);
+			this.http = HttpServer.create(new InetSocketAddress(bind, port), 0);
+			http.createContext("/sha256/", exchange -> serve(exchange, secret));
+			this.executor = Executors.newFixedThreadPool(SERVER_THREADS, r -> {
+				Thread thread = new Thread(r, "ArtifactorySCM peer server");
+				thread.setDaemon(true);
+				return thread;
+			});
+			http.setExecutor(executor);
+			http.start();
+			this.endpoint = new Endpoint(host, http.getAddress().getPort(), secret);
+			LOGGER.log(FINE, "Serving artifact cache {0} to peers at {1}", new Object[] {root, endpoint});
+		}
+
+		/**
+		 * Stops listening and lets the threads end once the running requests
+		 * are done.
+		 */
+		void stop() {
+			http.stop(0);
+			executor.shutdown();
+		}
+
+		private void serve(HttpExchange exchange, byte[] secret) throws IOException {
+			try {
+				String key = exchange.getRequestURI().getPath().substring("/sha256/".length());
+				if (!isValid(secret, key, exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+					exchange.sendResponseHeaders(403, -1);
+					return;
+				}
+				File blob = new File(new File(root, "sha256"), key);
+				if (!"GET".equals(exchange.getRequestMethod()) || !ArtifactCache.isValidKey(key) || !blob.isFile()) {
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+				// An open blob stays readable on POSIX systems even if the cache evicts it meanwhile
+				try (InputStream in = Files.newInputStream(blob.toPath())) {
+					exchange.sendResponseHeaders(200, blob.length());
+					try (OutputStream out = exchange.getResponseBody()) {
+						in.transferTo(out);
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.log(FINE, "Failed to serve a peer", e);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Picks the address peers reach this agent at: the one set with
+	 * {@link #HOST_PROPERTY}, the bind address when it is a single one, or the
+	 * first site local IPv4 address.
+	 */
+	private static String advertisedHost(String bindAddress) throws IOException {
+		String configured = System.getProperty(HOST_PROPERTY);
+		if (configured != null && !configured.isEmpty()) {
+			return configured;
+		}
+		if (!bindAddress.isEmpty() && !InetAddress.getByName(bindAddress).isAnyLocalAddress()) {
+			return bindAddress;
+		}
+		for (Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces(); interfaces
+				.hasMoreElements();) {
+			NetworkInterface network = interfaces.nextElement();
+			if (!network.isUp() || network.isLoopback()) {
+				continue;
+			}
+			for (Enumeration<InetAddress> addresses = network.getInetAddresses(); addresses.hasMoreElements();) {
+				InetAddress address = addresses.nextElement();
+				if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+					return address.getHostAddress();
+				}
+			}
+		}
+		return InetAddress.getLocalHost().getHostAddress();
+	}
+
+	/**
+	 * Downloads a blob from a peer into a file on the node, checking its
+	 * checksum. Returns why it failed, or null.
+	 */
+	private static final class Fetch extends MasterToSlaveFileCallable<String> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** Peers are on the local network, one that does not answer quickly is skipped. */
+		private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+		/** The time a peer has to start sending the blob. */
+		private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+		/** The time a transfer may go without a single byte before it is given up. */
+		private static final Duration STALL_TIMEOUT = Duration.ofSeconds(15);
+
+		/** Shared by the fetches of this JVM, so they reuse its connections and threads. */
+		private static final HttpClient CLIENT = HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build();
+
+		private final URI uri;
+
+		/** The ticket for the blob, not the secret of the peer. */
+		private final String ticket;
+
+		/** The peer, for messages. */
+		private final String peer;
+
+		private final String sha256;
+
+		Fetch(URI uri, String ticket, String peer, String sha256) {
+			this.uri = uri;
+			this.ticket = ticket;
+			this.peer = peer;
+			this.sha256 = sha256;
+		}
+
+		@CheckForNull
+		public String invoke(File target, VirtualChannel channel) throws IOException, InterruptedException {
+			HttpRequest request = HttpRequest.newBuilder(uri).header(TOKEN_HEADER, ticket).timeout(REQUEST_TIMEOUT)
+					.GET().build();
+			HttpResponse<InputStream> response;
+			try {
+				response = CLIENT.send(request, HttpResponse.BodyHandlers.ofInputStream());
+			} catch (IOException e) {
+				return "unreachable at " + peer + " (" + e + ")";
+			}
+			Checksums.Verifier verifier = new Checksums(sha256, null, null).newVerifier();
+			try (StallGuard in = new StallGuard(response.body(), STALL_TIMEOUT)) {
+				if (response.statusCode() != 200) {
+					return "HTTP " + response.statusCode() + " from " + peer;
+				}
+				try {
+					Files.copy(verifier.wrap(in), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					if (in.stalled) {
+						return "transfer from " + peer + " stalled for " + STALL_TIMEOUT.getSeconds() + " seconds";
+					}
+					LOGGER.log(WARNING, "Transfer from peer " + peer + " failed", e);
+					return "transfer from " + peer + " failed (" + e + ")";
+				}
+			}
+			try {
+				verifier.verify("peer " + peer);
+			} catch (Checksums.MismatchException e) {
+				return e.getMessage();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Aborts a transfer by closing its stream once no byte arrived for a while,
+	 * as a read from a peer that stopped sending would block for good.
+	 */
+	private static final class StallGuard extends FilterInputStream {
+
+		/** Checks the guarded transfers of this JVM for progress. */
+		private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ArtifactorySCM peer transfer watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		private final long timeoutNanos;
+
+		private final ScheduledFuture<?> check;
+
+		/** When the last byte arrived. */
+		private volatile long progress = System.nanoTime();
+
+		/** Whether the stream was closed for lack of progress. */
+		private volatile boolean stalled;
+
+		StallGuard(InputStream in, Duration timeout) {
+			super(in);
+			this.timeoutNanos = timeout.toNanos();
+			this.check = WATCHDOG.scheduleWithFixedDelay(this::check, 1, 1, TimeUnit.SECONDS);
+		}
+
+		private void check() {
+			if (System.nanoTime() - progress > timeoutNanos) {
+				stalled = true;
+				check.cancel(false);
+				try {
+					// Wakes up the blocked read, which then fails
+					in.close();
+				} catch (IOException e) {
+					LOGGER.log(FINE, "Failed to abort a stalled peer transfer", e);
+				}
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			progress = System.nanoTime();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			progress = System.nanoTime();
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			check.cancel(false);
+			super.close();
+		}
+	}
+}
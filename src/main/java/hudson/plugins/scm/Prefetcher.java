@@ -0,0 +1,248 @@
+package hudson.plugins.scm;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.LogTaskListener;
+import jenkins.model.Jenkins;
+import jenkins.triggers.SCMTriggerItem;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Brings a newly published artifact into the agent cache of idle agents before
+ * the jobs checking it out are even queued.
+ *
+ * When a poll or a webhook call finds a new latest artifact, the jobs watching
+ * its pattern are known, and their labels tell which agents they will run on.
+ * Up to the configured number of those agents that are online and idle
+ * download the artifact into their cache in the background, so the checkout of
+ * the downstream build finds it by its checksum. Prefetches take their turn for
+ * transfer slots like a job of their own, and one an agent already started
+ * runs to its end when a build lands on the agent meanwhile.
+ */
+public final class Prefetcher {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(Prefetcher.class.getName());
+
+	/** The job prefetches take turns for transfer slots as. */
+	static final String JOB = "(prefetch)";
+
+	/** The prefetches running at once, across all agents. */
+	private static final int THREADS = 4;
+
+	/** Runs the prefetches off the poll or webhook call that found the artifact. */
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, r -> {
+		Thread thread = new Thread(r, "ArtifactorySCM prefetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** The prefetches queued or running, by node name and checksum. */
+	private static final Set<String> PENDING = ConcurrentHashMap.newKeySet();
+
+	/** Where the transfers of prefetches log to, as there is no build log. */
+	private static final TaskListener LISTENER = new LogTaskListener(LOGGER, Level.FINE);
+
+	private Prefetcher() {
+	}
+
+	/**
+	 * Starts prefetching a new latest artifact onto idle agents of the jobs
+	 * watching it, when prefetching and the agent cache are enabled.
+	 *
+	 * @param host
+	 *            the Artifactory host the artifact was found on, null for any
+	 *            host with the repo
+	 * @param item
+	 *            the artifact
+	 * @return the number of prefetches started
+	 */
+	public static int published(@CheckForNull String host, ArtifactoryItem item) {
+		Jenkins jenkins = Jenkins.getInstanceOrNull();
+		if (jenkins == null) {
+			return 0;
+		}
+		ArtifactorySCM.ArtifactorySCMDescriptorImpl descriptor = jenkins
+				.getDescriptorByType(ArtifactorySCM.ArtifactorySCMDescriptorImpl.class);
+		if (descriptor == null || !descriptor.isCacheEnabled() || descriptor.getPrefetchAgents() <= 0
+				|| !ArtifactCache.isValidKey(item.getSha256())) {
+			return 0;
+		}
+		// Each agent at most once, however many of its jobs watch the artifact
+		Map<String, Target> targets = new LinkedHashMap<>();
+		try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+			for (Job<?, ?> job : jenkins.getAllItems(Job.class)) {
+				SCMTriggerItem trigger = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+				Watch watch = trigger == null ? null : watching(trigger, host, item);
+				if (watch == null) {
+					continue;
+				}
+				for (Computer computer : jenkins.getComputers()) {
+					if (targets.size() >= descriptor.getPrefetchAgents()) {
+						break;
+					}
+					Node node = computer.getNode();
+					if (node != null && !targets.containsKey(computer.getName()) && isIdle(computer, label(job))) {
+						targets.put(computer.getName(), new Target(node, watch.url,
+								ArtifactoryAuth.forJob(watch.scm.getCredentialsId(), job)));
+					}
+				}
+			}
+		}
+		int started = 0;
+		for (Map.Entry<String, Target> target : targets.entrySet()) {
+			String key = target.getKey() + "#" + item.getSha256();
+			if (PENDING.add(key)) {
+				EXECUTOR.execute(() -> {
+					try {
+						prefetch(target.getValue(), item, descriptor);
+					} catch (IOException | RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Failed to prefetch " + item + " onto " + describe(target.getKey()), e);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						PENDING.remove(key);
+					}
+				});
+				started++;
+			}
+		}
+		LOGGER.log(Level.FINE, "Prefetching {0} onto {1}", new Object[] { item, targets.keySet() });
+		return started;
+	}
+
+	/**
+	 * Finds the artifact spec of a job the artifact is the latest for.
+	 *
+	 * @return the spec, or null when the job does not watch the artifact
+	 */
+	@CheckForNull
+	private static Watch watching(SCMTriggerItem trigger, @CheckForNull String host, ArtifactoryItem item) {
+		for (SCM scm : trigger.getSCMs()) {
+			if (!(scm instanceof ArtifactorySCM)) {
+				continue;
+			}
+			ArtifactorySCM artifactory = (ArtifactorySCM) scm;
+			for (ArtifactSpec spec : artifactory.getArtifactSpecs()) {
+				String[] url = spec.getUrl().replace("https://", "").split("/");
+				if (url.length < 4 || (host != null && !url[0].equals(host)) || !url[2].equals(item.getRepo())) {
+					continue;
+				}
+				String namePattern = ArtifactorySCM.namePattern(url[url.length - 1], spec.getLatestVersionTag());
+				if (ArtifactoryPoller.toRegex(namePattern).matcher(item.getName()).matches()) {
+					return new Watch(artifactory, url);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the label a job runs on. A Pipeline picks its agents inside the
+	 * script, so any agent taking unlabeled work may run its checkout.
+	 */
+	@CheckForNull
+	private static Label label(Job<?, ?> job) {
+		if (job instanceof Queue.Task && !(job instanceof Queue.FlyweightTask)) {
+			return ((Queue.Task) job).getAssignedLabel();
+		}
+		return null;
+	}
+
+	private static boolean isIdle(Computer computer, @CheckForNull Label label) {
+		Node node = computer.getNode();
+		if (node == null || !computer.isOnline() || !computer.isIdle() || node.getNumExecutors() == 0) {
+			return false;
+		}
+		return label == null ? node.getMode() == Node.Mode.NORMAL : label.contains(node);
+	}
+
+	/**
+	 * Downloads the artifact into the cache of one agent, from a peer when one
+	 * holds it already, unless the cache has it.
+	 */
+	private static void prefetch(Target target, ArtifactoryItem item,
+			ArtifactorySCM.ArtifactorySCMDescriptorImpl descriptor) throws IOException, InterruptedException {
+		FilePath root = target.node.getRootPath();
+		if (root == null) {
+			// Went offline since it was picked
+			return;
+		}
+		String sha256 = item.getSha256();
+		ArtifactCache cache = new ArtifactCache(root.child(ArtifactCache.CACHE_DIR), descriptor.getCacheMaxSizeBytes());
+		if (cache.contains(sha256)) {
+			return;
+		}
+		FilePath temp = cache.createTempFile();
+		try {
+			boolean verified = ArtifactorySCM.fetchBlob(temp, cache, root, target.url[0], JOB,
+					item.toURL(target.url[0], target.url[1]), target.auth.getHeaders(),
+					new Checksums(sha256, null, null), null, descriptor, LISTENER);
+			cache.store(temp, sha256, verified);
+			cache.release(sha256);
+		} finally {
+			temp.delete();
+		}
+		ArtifactorySCM.share(root, cache, sha256, descriptor);
+		LOGGER.log(Level.INFO, "Prefetched {0} into the agent cache of {1}",
+				new Object[] { item, describe(target.node.getNodeName()) });
+	}
+
+	private static String describe(String node) {
+		return node.isEmpty() ? "built-in node" : node;
+	}
+
+	/**
+	 * The artifact spec of a job watching an artifact.
+	 */
+	private static final class Watch {
+
+		private final ArtifactorySCM scm;
+
+		/** The spec URL split into host, context, repo and folders. */
+		private final String[] url;
+
+		Watch(ArtifactorySCM scm, String[] url) {
+			this.scm = scm;
+			this.url = url;
+		}
+	}
+
+	/**
+	 * An agent to prefetch onto, with what to download the artifact as.
+	 */
+	private static final class Target {
+
+		private final Node node;
+
+		/** The spec URL of the job that picked the agent, split into host, context, repo and folders. */
+		private final String[] url;
+
+		private final ArtifactoryAuth auth;
+
+		Target(Node node, String[] url, ArtifactoryAuth auth) {
+			this.node = node;
+			this.url = url;
+			this.auth = auth;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package hudson.plugins.scm;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Reads one entry of a zip a lazy checkout kept, without extracting the
+ * archive, for example {@code readArtifactEntry file: 'conf/app.properties'}.
+ */
+public class ReadArtifactEntryStep extends Step {
+
+	/** The path of the entry, as it would have been extracted. */
+	private final String file;
+
+	/** The target directory of the checkout, relative to the workspace. */
+	private String directory = "";
+
+	/** The encoding of the entry. */
+	private String encoding = "UTF-8";
+
+	/**
+	 * Instantiates a new read artifact entry step.
+	 *
+	 * @param file
+	 *            the path of the entry
+	 */
+	@DataBoundConstructor
+	public ReadArtifactEntryStep(String file) {
+		this.file = file;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	@DataBoundSetter
+	public void setDirectory(String directory) {
+		this.directory = directory == null ? "" : directory.trim();
+	}
+
+	public String getDirectory() {
+		return directory;
+	}
+
+	@DataBoundSetter
+	public void setEncoding(String encoding) {
+		this.encoding = encoding == null || encoding.trim().isEmpty() ? "UTF-8" : encoding.trim();
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new Execution(this, context);
+	}
+
+	/**
+	 * Reads the entry on the node of the workspace.
+	 */
+	private static final class Execution extends SynchronousNonBlockingStepExecution<String> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		private final transient ReadArtifactEntryStep step;
+
+		Execution(ReadArtifactEntryStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+
+		@Override
+		protected String run() throws Exception {
+			FilePath workspace = getContext().get(FilePath.class);
+			FilePath target = step.directory.isEmpty() ? workspace : workspace.child(step.directory);
+			try {
+				return target.act(new ReadEntry(step.file, step.encoding));
+			} catch (FileNotFoundException e) {
+				throw new AbortException(e.getMessage() + " in " + target.getRemote());
+			}
+		}
+	}
+
+	/**
+	 * Maps the entry from the kept archive and decodes it.
+	 */
+	private static final class ReadEntry extends MasterToSlaveFileCallable<String> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		private final String file;
+
+		private final String encoding;
+
+		ReadEntry(String file, String encoding) {
+			this.file = file;
+			this.encoding = encoding;
+		}
+
+		public String invoke(File target, VirtualChannel channel) throws IOException, InterruptedException {
+			try (LazyArchive archive = LazyArchive.open(target); InputStream in = archive.read(file)) {
+				return IOUtils.toString(in, Charset.forName(encoding));
+			}
+		}
+	}
+
+	/**
+	 * The Class DescriptorImpl.
+	 */
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return Collections.singleton(FilePath.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "readArtifactEntry";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Read an entry of a lazily checked out artifact";
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package hudson.plugins.scm;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which artifact a folder URL resolved to, for a few seconds.
+ *
+ * When many jobs check out the same artifact at once, the first one runs the
+ * AQL search and the others wait for its answer instead of sending the same
+ * query again. Answers are kept for a configurable time and dropped as soon as
+ * polling or a webhook reports a change in their repo.
+ */
+@Extension
+public class ResolutionCache {
+
+	/** The entries by host, context, repo, folder, version tag and credentials. */
+	private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+	/** Lookups answered by a cached or in-flight search. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Lookups that had to search. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Gets the cache of this controller.
+	 *
+	 * @return the cache
+	 */
+	public static ResolutionCache get() {
+		return ExtensionList.lookupSingleton(ResolutionCache.class);
+	}
+
+	/**
+	 * Resolves a folder URL, sharing the answer with other callers.
+	 *
+	 * @param urlString
+	 *            the configured folder URL
+	 * @param latestVersionTag
+	 *            the version tag
+	 * @param credentialsId
+	 *            the credentials the search runs with, may be null
+	 * @param ttlSeconds
+	 *            how long an answer is kept, 0 to only share in-flight searches
+	 * @param search
+	 *            runs the search when no answer is at hand
+	 * @return the latest artifact
+	 */
+	public ArtifactoryItem resolve(String urlString, String latestVersionTag, String credentialsId, int ttlSeconds,
+			Search search) throws IOException, InterruptedException {
+		Key key = new Key(urlString, latestVersionTag, credentialsId);
+		while (true) {
+			long now = System.currentTimeMillis();
+			Entry entry = entries.get(key);
+			if (entry == null || (entry.future.isDone() && entry.expires <= now)) {
+				Entry mine = new Entry();
+				boolean won = entry == null ? entries.putIfAbsent(key, mine) == null : entries.replace(key, entry, mine);
+				if (!won) {
+					// Someone else started a search in the meantime, wait for theirs
+					continue;
+				}
+				misses.incrementAndGet();
+				try {
+					ArtifactoryItem item = search.run();
+					mine.expires = System.currentTimeMillis() + ttlSeconds * 1000L;
+					mine.future.complete(item);
+					return item;
+				} catch (IOException | InterruptedException | RuntimeException e) {
+					// Failures are not cached, the next caller searches again
+					entries.remove(key, mine);
+					mine.future.completeExceptionally(e);
+					throw e;
+				}
+			}
+			hits.incrementAndGet();
+			try {
+				return entry.future.get();
+			} catch (CancellationException e) {
+				continue;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw new IOException(cause.getMessage(), cause);
+				}
+				throw new IOException(cause);
+			}
+		}
+	}
+
+	/**
+	 * Drops every answer about a repo.
+	 *
+	 * @param repo
+	 *            the repo
+	 */
+	public void invalidate(String repo) {
+		entries.keySet().removeIf(key -> key.repo.equals(repo));
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * The search behind a lookup.
+	 */
+	public interface Search {
+
+		ArtifactoryItem run() throws IOException, InterruptedException;
+	}
+
+	/**
+	 * An answer, or a search still running.
+	 */
+	private static final class Entry {
+
+		private final CompletableFuture<ArtifactoryItem> future = new CompletableFuture<>();
+
+		/** When the answer expires, set once it arrived. */
+		private volatile long expires = Long.MAX_VALUE;
+	}
+
+	/**
+	 * What an answer depends on.
+	 */
+	private static final class Key {
+
+		private final String url;
+
+		private final String repo;
+
+		private final String latestVersionTag;
+
+		private final String credentialsId;
+
+		Key(String urlString, String latestVersionTag, String credentialsId) {
+			String[] parts = urlString.replace("https://", "").split("/");
+			// The host, context, repo and folder, without a trailing slash
+			this.url = String.join("/", parts);
+			this.repo = parts.length > 2 ? parts[2] : "";
+			this.latestVersionTag = latestVersionTag;
+			this.credentialsId = credentialsId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return url.equals(other.url) && Objects.equals(latestVersionTag, other.latestVersionTag)
+					&& Objects.equals(credentialsId, other.credentialsId);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(url, latestVersionTag, credentialsId);
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package hudson.plugins.scm;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Extracts a zip or tar stream on the agent, entry by entry, through an
+ * {@link EntryFilter}.
+ *
+ * The format is told by the first bytes of the stream: a tar may be compressed
+ * with any format {@link Decompressors} knows, and a stream that turns out to
+ * be neither zip nor tar is written as a single file, decompressed when it was
+ * compressed.
+ *
+ * Excluded entries are skipped in the stream without being written. The
+ * stream cannot be looked at twice, so in {@link EntryFilter#AUTO} mode the
+ * top level folder of the first entry is taken for the one to strip. When a
+ * later entry shows the archive has no single top level folder, the few top
+ * level paths written so far are moved back under that folder and the rest is
+ * extracted as it is. That only works when every entry is extracted: with
+ * include or exclude patterns the folder must be known before the first entry
+ * is matched, so the archive has to be a file, read once for its top level
+ * folder and once to extract it.
+ */
+public class StreamingUnpack extends MasterToSlaveFileCallable<StreamingUnpack.Result> {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The bytes a tar header needs to be recognized. */
+	private static final int TAR_SIGNATURE_LENGTH = 512;
+
+	/** The stream of the archive, null when it is a file on the agent. */
+	private final InputStream in;
+
+	/** The archive on the agent, null when it is streamed. */
+	private final String archive;
+
+	/** The artifact file name, used for a file that is not an archive and for tars without magic. */
+	private final String fileName;
+
+	private final EntryFilter filter;
+
+	/**
+	 * Extracts a stream, for example a remote one from the controller.
+	 *
+	 * @param in
+	 *            the stream of the archive
+	 * @param fileName
+	 *            the artifact file name
+	 * @param filter
+	 *            the entries to extract
+	 */
+	public StreamingUnpack(InputStream in, String fileName, EntryFilter filter) {
+		this(in, null, fileName, filter);
+	}
+
+	/**
+	 * Extracts an archive that is already a file on the agent.
+	 *
+	 * @param archive
+	 *            the archive path on the agent
+	 * @param fileName
+	 *            the artifact file name
+	 * @param filter
+	 *            the entries to extract
+	 */
+	public StreamingUnpack(String archive, String fileName, EntryFilter filter) {
+		this(null, archive, fileName, filter);
+	}
+
+	private StreamingUnpack(@CheckForNull InputStream in, @CheckForNull String archive, String fileName,
+			EntryFilter filter) {
+		this.in = in;
+		this.archive = archive;
+		this.fileName = fileName;
+		this.filter = filter;
+	}
+
+	private static boolean isZip(String fileName) {
+		return fileName.endsWith(".zip") || fileName.endsWith(".jar")
+				|| fileName.endsWith(".war") || fileName.endsWith(".ear");
+	}
+
+	public Result invoke(File target, VirtualChannel channel) throws IOException, InterruptedException {
+		target.mkdirs();
+		// The top level folder stripped in auto mode, null until the first entry is seen
+		String root = filter.isAuto() ? null : "";
+		if (filter.isAuto() && filter.hasPatterns()) {
+			// The patterns match the paths below the folder, so it has to be known before the first entry
+			// is matched, and only all entries tell it
+			if (in == null) {
+				root = commonRoot();
+			} else {
+				throw new IOException("Cannot match " + filter + " against the entries of " + fileName
+						+ " while it streams in, its top level folder is only known after the last entry");
+			}
+		}
+		InputStream source = in != null ? in : Files.newInputStream(Paths.get(archive));
+		try (InputStream raw = new BufferedInputStream(source, 65536)) {
+			Decompressors.Decompressor compression = Decompressors.detect(raw);
+			String name = compression == null ? fileName : compression.strip(fileName);
+			try (InputStream content = compression == null ? raw
+					: new BufferedInputStream(Decompressors.openReadAhead(compression, raw), 65536)) {
+				String format = compression == null ? "" : "." + compression.getName();
+				byte[] signature = new byte[TAR_SIGNATURE_LENGTH];
+				content.mark(signature.length);
+				int length = content.readNBytes(signature, 0, signature.length);
+				content.reset();
+				Result result;
+				if (ZipArchiveInputStream.matches(signature, length) || compression == null && isZip(fileName)) {
+					// Stored entries followed by a data descriptor are read up to the descriptor's signature
+					try (ArchiveInputStream entries = new ZipArchiveInputStream(content, "UTF-8", true, true)) {
+						result = new Result("zip" + format, unpack(entries, target, root));
+						drain(content, raw);
+					}
+				} else if (TarArchiveInputStream.matches(signature, length) || name.endsWith(".tar")) {
+					// Old tars have no magic, the file name has to tell
+					try (ArchiveInputStream entries = new TarArchiveInputStream(content)) {
+						result = new Result("tar" + format, unpack(entries, target, root));
+						drain(content, raw);
+					}
+				} else {
+					// Not an archive, the file itself is the artifact
+					Files.copy(content, IncrementalUnzip.resolve(target, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+					result = new Result(compression == null ? "none" : compression.getName(), -1);
+					drain(content, raw);
+				}
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Reads what is left of a stream from the controller, like the central
+	 * directory of a zip, so that the controller has seen every byte for the
+	 * checksum once this callable returns. The controller never reads the
+	 * stream itself while it is remote, as it is pumped to the agent on a
+	 * thread of its own.
+	 *
+	 * @param content
+	 *            the archive, decompressed
+	 * @param raw
+	 *            the stream as it came, read after the decompressing thread is
+	 *            done with it
+	 */
+	private void drain(InputStream content, InputStream raw) throws IOException {
+		if (in == null) {
+			return;
+		}
+		IOUtils.skip(content, Long.MAX_VALUE);
+		if (content != raw) {
+			// Whatever follows the end of the compressed data
+			IOUtils.skip(raw, Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Finds the single top level folder of the archive file for auto mode: in
+	 * the central directory of a zip, like {@link ParallelUnzip}, or with a
+	 * first pass over the entries of a tar.
+	 *
+	 * @return the folder with its trailing slash, empty for none
+	 */
+	private String commonRoot() throws IOException {
+		try (InputStream raw = new BufferedInputStream(Files.newInputStream(Paths.get(archive)), 65536)) {
+			Decompressors.Decompressor compression = Decompressors.detect(raw);
+			String name = compression == null ? fileName : compression.strip(fileName);
+			try (InputStream content = compression == null ? raw
+					: new BufferedInputStream(Decompressors.openReadAhead(compression, raw), 65536)) {
+				byte[] signature = new byte[TAR_SIGNATURE_LENGTH];
+				content.mark(signature.length);
+				int length = content.readNBytes(signature, 0, signature.length);
+				content.reset();
+				if (compression == null && (ZipArchiveInputStream.matches(signature, length) || isZip(fileName))) {
+					try (ZipFile zip = new ZipFile(archive)) {
+						return IncrementalUnzip.commonRoot(zip);
+					}
+				}
+				ArchiveInputStream entries;
+				if (ZipArchiveInputStream.matches(signature, length)) {
+					entries = new ZipArchiveInputStream(content, "UTF-8", true, true);
+				} else if (TarArchiveInputStream.matches(signature, length) || name.endsWith(".tar")) {
+					entries = new TarArchiveInputStream(content);
+				} else {
+					return "";
+				}
+				try (ArchiveInputStream closing = entries) {
+					String root = null;
+					ArchiveEntry e;
+					while ((e = entries.getNextEntry()) != null) {
+						String entryName = e.getName();
+						int slash = entryName.indexOf('/');
+						if (slash < 0 || root != null && !entryName.startsWith(root)) {
+							// A file at the top level, or a second folder there
+							return "";
+						}
+						root = entryName.substring(0, slash + 1);
+					}
+					return root == null ? "" : root;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Extracts the entries.
+	 *
+	 * @param root
+	 *            the top level folder to strip in auto mode, null to take the
+	 *            one of the first entry
+	 */
+	private int unpack(ArchiveInputStream entries, File target, @CheckForNull String root)
+			throws IOException, InterruptedException {
+		// What was written at the top level, moved back when the guessed folder turns out wrong
+		Set<String> written = new LinkedHashSet<>();
+		int files = 0;
+		ArchiveEntry e;
+		while ((e = entries.getNextEntry()) != null) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			String name = e.getName();
+			if (root == null) {
+				int slash = name.indexOf('/');
+				root = slash < 0 ? "" : name.substring(0, slash + 1);
+			} else if (!root.isEmpty() && !name.startsWith(root)) {
+				unstrip(target, root, written);
+				root = "";
+			}
+			String path = filter.map(name, root);
+			if (path == null) {
+				continue;
+			}
+			if (!entries.canReadEntryData(e)) {
+				throw new IOException("Cannot extract " + name + ": " + unreadable(e));
+			}
+			File file = IncrementalUnzip.resolve(target, path);
+			if (filter.isAuto()) {
+				int slash = path.indexOf('/');
+				written.add(slash < 0 ? path : path.substring(0, slash));
+			}
+			if (e.isDirectory()) {
+				file.mkdirs();
+				continue;
+			}
+			File parent = file.getParentFile();
+			if (parent != null) {
+				parent.mkdirs();
+			}
+			if (e instanceof TarArchiveEntry && ((TarArchiveEntry) e).isSymbolicLink()) {
+				Files.deleteIfExists(file.toPath());
+				Files.createSymbolicLink(file.toPath(), Paths.get(((TarArchiveEntry) e).getLinkName()));
+				continue;
+			}
+			Files.copy(entries, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			int mode = e instanceof ZipArchiveEntry ? ((ZipArchiveEntry) e).getUnixMode()
+					: e instanceof TarArchiveEntry ? ((TarArchiveEntry) e).getMode() : 0;
+			if ((mode & 0100) != 0) {
+				file.setExecutable(true, (mode & 011) == 0);
+			}
+			if (e.getLastModifiedDate() != null && e.getLastModifiedDate().getTime() > 0) {
+				file.setLastModified(e.getLastModifiedDate().getTime());
+			}
+			files++;
+		}
+		return files;
+	}
+
+	/**
+	 * Tells why the data of an entry cannot be read from the stream.
+	 */
+	private static String unreadable(ArchiveEntry e) {
+		if (e instanceof ZipArchiveEntry) {
+			ZipArchiveEntry zip = (ZipArchiveEntry) e;
+			if (zip.getGeneralPurposeBit().usesEncryption()) {
+				return "the entry is encrypted";
+			}
+			ZipMethod method = ZipMethod.getMethodByCode(zip.getMethod());
+			return "compression method " + (method != null ? method : zip.getMethod()) + " is not supported";
+		}
+		return "the entry data is not supported";
+	}
+
+	/**
+	 * Moves what was extracted with the guessed top level folder stripped back
+	 * below that folder.
+	 */
+	private static void unstrip(File target, String root, Set<String> written) throws IOException {
+		File folder = IncrementalUnzip.resolve(target, root);
+		// The folder may share its name with one of the paths to move
+		File staging = Files.createTempDirectory(target.toPath(), ".unstrip").toFile();
+		for (String path : written) {
+			Files.move(new File(target, path).toPath(), new File(staging, path).toPath());
+		}
+		if (!folder.exists()) {
+			Files.move(staging.toPath(), folder.toPath());
+		} else {
+			// Left over from an earlier checkout the target was not cleared for
+			for (String path : written) {
+				Files.move(new File(staging, path).toPath(), new File(folder, path).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.delete(staging.toPath());
+		}
+		written.clear();
+	}
+
+	/**
+	 * What was found in the stream and extracted from it.
+	 */
+	public static final class Result implements Serializable {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The archive and compression format, like tar.zstd. */
+		private final String format;
+
+		/** The number of files written, -1 when the stream was no archive. */
+		private final int files;
+
+		Result(String format, int files) {
+			this.format = format;
+			this.files = files;
+		}
+
+		public String getFormat() {
+			return format;
+		}
+
+		public int getFiles() {
+			return files;
+		}
+
+		@Override
+		public String toString() {
+			if (files < 0) {
+				return "Compression type is " + format + ", not an archive, hence written as a single file";
+			}
+			return "Compression type is " + format + ", extracted " + files + " files";
+		}
+	}
+}
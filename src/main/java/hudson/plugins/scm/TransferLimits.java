@@ -0,0 +1,324 @@
+package hudson.plugins.scm;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the artifact transfers running at once, on the controller, against
+ * each Artifactory host and on each agent, across all builds.
+ *
+ * Transfers through the controller take a controller permit, every transfer
+ * takes a permit of the Artifactory host it downloads from and one of the
+ * node its workspace is on. Waiting transfers are granted permits in turns by
+ * job, so a job checking out many artifacts cannot starve the others. Bytes
+ * read through the controller can be capped by a token bucket. Limits picked
+ * up from the global configuration apply from the next transfer on. The
+ * checkout stages of all builds run on one pool sized by these limits.
+ */
+public final class TransferLimits {
+
+	/** The controller permits. */
+	private static final FairLimit CONTROLLER = new FairLimit();
+
+	/** The permits of each Artifactory host, by host name. */
+	private static final ConcurrentMap<String, FairLimit> HOSTS = new ConcurrentHashMap<>();
+
+	/** The permits of each node, by node name. */
+	private static final ConcurrentMap<String, FairLimit> NODES = new ConcurrentHashMap<>();
+
+	/** The bytes per second read through the controller. */
+	private static final TokenBucket BANDWIDTH = new TokenBucket();
+
+	/** Runs the stages of all checkouts, see {@link #executor}. */
+	private static final ThreadPoolExecutor STAGES = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<>(), r -> {
+				Thread thread = new Thread(r, "ArtifactorySCM checkout stage");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	static {
+		STAGES.allowCoreThreadTimeOut(true);
+	}
+
+	private TransferLimits() {
+	}
+
+	/**
+	 * Waits until a transfer into the given workspace may start.
+	 *
+	 * @param workspace
+	 *            the workspace the artifact goes to
+	 * @param host
+	 *            the Artifactory host the artifact comes from
+	 * @param job
+	 *            the job transferring, which waiting transfers take turns by
+	 * @param throughController
+	 *            whether the bytes pass through the controller
+	 * @param descriptor
+	 *            the global configuration
+	 * @return the permit, to close when the transfer ended
+	 */
+	public static Permit acquire(FilePath workspace, String host, String job, boolean throughController,
+			ArtifactorySCM.ArtifactorySCMDescriptorImpl descriptor) throws InterruptedException {
+		Computer computer = workspace.toComputer();
+		String node = computer == null ? "" : computer.getName();
+		BANDWIDTH.setRate(descriptor.getMaxControllerBandwidth() * 1024L * 1024L);
+		FairLimit nodeLimit = NODES.computeIfAbsent(node, k -> new FairLimit());
+		nodeLimit.setSize(descriptor.getMaxTransfersPerAgent());
+		FairLimit hostLimit = HOSTS.computeIfAbsent(host, k -> new FairLimit());
+		hostLimit.setSize(descriptor.getMaxTransfersPerHost());
+		FairLimit controllerLimit = null;
+		if (throughController) {
+			controllerLimit = CONTROLLER;
+			controllerLimit.setSize(descriptor.getMaxControllerTransfers());
+		}
+		long start = System.nanoTime();
+		Permit permit = new Permit();
+		// Always node, then host, then controller, so two transfers never wait on each other
+		try {
+			nodeLimit.acquire(job);
+			permit.held[0] = nodeLimit;
+			hostLimit.acquire(job);
+			permit.held[1] = hostLimit;
+			if (controllerLimit != null) {
+				controllerLimit.acquire(job);
+				permit.held[2] = controllerLimit;
+			}
+		} catch (InterruptedException e) {
+			permit.close();
+			throw e;
+		}
+		permit.waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		return permit;
+	}
+
+	/**
+	 * Gets the threads the resolution and transfer stages of all checkouts run
+	 * on. There are as many as transfers may run through the controller plus
+	 * against one Artifactory host, more would only wait for permits. Tasks
+	 * beyond that queue in the order they were submitted, so a transfer never
+	 * gets a thread before the resolution it waits for.
+	 *
+	 * @param descriptor
+	 *            the global configuration
+	 * @return the executor, shared by all builds
+	 */
+	public static ExecutorService executor(ArtifactorySCM.ArtifactorySCMDescriptorImpl descriptor) {
+		int size = descriptor.getMaxControllerTransfers() + descriptor.getMaxTransfersPerHost();
+		synchronized (STAGES) {
+			// The core size may never exceed the maximum size
+			if (size > STAGES.getMaximumPoolSize()) {
+				STAGES.setMaximumPoolSize(size);
+				STAGES.setCorePoolSize(size);
+			} else if (size < STAGES.getMaximumPoolSize()) {
+				STAGES.setCorePoolSize(size);
+				STAGES.setMaximumPoolSize(size);
+			}
+		}
+		return STAGES;
+	}
+
+	/**
+	 * Caps the bytes read from a stream on the controller to the configured
+	 * bandwidth, shared by all transfers through the controller.
+	 *
+	 * @param in
+	 *            the stream
+	 * @return the capped stream
+	 */
+	public static InputStream throttle(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) {
+					BANDWIDTH.take(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					BANDWIDTH.take(n);
+				}
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * A number of permits, granted to waiting jobs in turns.
+	 */
+	static final class FairLimit {
+
+		private int size = 1;
+
+		private int running;
+
+		/** The waiting transfers of each job, the job first in line first. */
+		private final LinkedHashMap<String, ArrayDeque<Waiter>> queues = new LinkedHashMap<>();
+
+		synchronized void setSize(int size) {
+			if (this.size != size) {
+				this.size = Math.max(1, size);
+				grant();
+			}
+		}
+
+		synchronized void acquire(String job) throws InterruptedException {
+			if (running < size && queues.isEmpty()) {
+				running++;
+				return;
+			}
+			Waiter waiter = new Waiter();
+			queues.computeIfAbsent(job, k -> new ArrayDeque<>()).add(waiter);
+			try {
+				while (!waiter.granted) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				if (waiter.granted) {
+					release();
+				} else {
+					ArrayDeque<Waiter> queue = queues.get(job);
+					queue.remove(waiter);
+					if (queue.isEmpty()) {
+						queues.remove(job);
+					}
+				}
+				throw e;
+			}
+		}
+
+		synchronized void release() {
+			running--;
+			grant();
+		}
+
+		private void grant() {
+			boolean granted = false;
+			while (running < size && !queues.isEmpty()) {
+				Iterator<Map.Entry<String, ArrayDeque<Waiter>>> it = queues.entrySet().iterator();
+				Map.Entry<String, ArrayDeque<Waiter>> next = it.next();
+				it.remove();
+				next.getValue().poll().granted = true;
+				running++;
+				granted = true;
+				if (!next.getValue().isEmpty()) {
+					// The job goes back to the end of the line
+					queues.put(next.getKey(), next.getValue());
+				}
+			}
+			if (granted) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * A transfer waiting for a permit.
+	 */
+	private static final class Waiter {
+
+		private boolean granted;
+	}
+
+	/**
+	 * Hands out bytes at a rate, a second's worth at most in a burst. Readers
+	 * that take more than there is wait for it, so concurrent readers share the
+	 * rate.
+	 */
+	static final class TokenBucket {
+
+		/** Bytes per second, 0 for no cap. */
+		private long rate;
+
+		private double tokens;
+
+		private long last = System.nanoTime();
+
+		synchronized void setRate(long rate) {
+			if (this.rate != rate) {
+				this.rate = rate;
+				tokens = Math.min(tokens, rate);
+			}
+		}
+
+		void take(int bytes) throws InterruptedIOException {
+			long waitNanos;
+			synchronized (this) {
+				if (rate <= 0) {
+					return;
+				}
+				long now = System.nanoTime();
+				tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+				last = now;
+				tokens -= bytes;
+				waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+			}
+			if (waitNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+				}
+			}
+		}
+	}
+
+	/**
+	 * The right to run one transfer.
+	 */
+	public static final class Permit implements AutoCloseable {
+
+		/** The node, host and controller permits held. */
+		private final FairLimit[] held = new FairLimit[3];
+
+		private long waitMillis;
+
+		private boolean closed;
+
+		Permit() {
+		}
+
+		/**
+		 * Gets how long the transfer waited for its turn.
+		 *
+		 * @return the wait in milliseconds
+		 */
+		public long getWaitMillis() {
+			return waitMillis;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			for (int i = held.length - 1; i >= 0; i--) {
+				if (held[i] != null) {
+					held[i].release();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package hudson.plugins.scm;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replaces the contents of a directory without it ever being empty or half
+ * written.
+ *
+ * An artifact is extracted into a staging directory next to its target
+ * directory. Once it is complete, the two are swapped with renames, and the old
+ * tree is deleted in the background on the node. A failed or slow transfer
+ * leaves the target directory as it was, and so does a swap that fails half
+ * way. A target directory other artifacts share is not replaced, the staged
+ * files are merged into it instead.
+ */
+public final class WorkspaceSwap {
+
+	/** The Constant LOGGER. */
+	private static final Logger LOGGER = Logger.getLogger(WorkspaceSwap.class.getName());
+
+	/** Marks a staging directory, next to the target directory it is for. */
+	static final String STAGING = "@artifactory-staging";
+
+	/** Marks a directory holding an old tree that is being deleted. */
+	static final String TRASH = "@artifactory-trash";
+
+	/** Deletes old trees on the node, one at a time, off the builds' critical path. */
+	private static final ExecutorService DELETER = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "ArtifactorySCM workspace deleter");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private WorkspaceSwap() {
+	}
+
+	/**
+	 * Creates an empty staging directory for a target directory.
+	 *
+	 * @param target
+	 *            the target directory
+	 * @return the staging directory, next to the target directory so it can be
+	 *         renamed into place
+	 */
+	public static FilePath stage(FilePath target) throws IOException, InterruptedException {
+		return target.sibling(target.act(new Stage()));
+	}
+
+	/**
+	 * Swaps a complete staging directory with its target directory.
+	 *
+	 * @param target
+	 *            the target directory
+	 * @param staging
+	 *            the staging directory, gone after the swap
+	 */
+	public static void swap(FilePath target, FilePath staging) throws IOException, InterruptedException {
+		target.act(new Swap(staging.getRemote()));
+	}
+
+	/**
+	 * Moves the contents of a complete staging directory into its target
+	 * directory, for a target directory other artifacts share. Files already in
+	 * the target directory are replaced, the others are kept.
+	 *
+	 * @param target
+	 *            the target directory
+	 * @param staging
+	 *            the staging directory, gone after the merge
+	 */
+	public static void merge(FilePath target, FilePath staging) throws IOException, InterruptedException {
+		target.act(new Merge(staging.getRemote()));
+	}
+
+	/**
+	 * Empties a directory at once, its old contents deleted in the background.
+	 *
+	 * @param directory
+	 *            the directory
+	 */
+	public static void clear(FilePath directory) throws IOException, InterruptedException {
+		directory.act(new Clear());
+	}
+
+	/**
+	 * Deletes an old tree in the background.
+	 */
+	private static void deleteLater(File trash) {
+		DELETER.execute(() -> {
+			try {
+				Util.deleteRecursive(trash);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to delete " + trash, e);
+			}
+		});
+	}
+
+	/**
+	 * Deletes what earlier swaps interrupted by a restart left next to a target
+	 * directory.
+	 */
+	private static void sweep(File target) {
+		File[] leftovers = target.getAbsoluteFile().getParentFile().listFiles((dir, name) ->
+				name.startsWith(target.getName() + STAGING) || name.startsWith(target.getName() + TRASH));
+		if (leftovers != null) {
+			for (File leftover : leftovers) {
+				deleteLater(leftover);
+			}
+		}
+	}
+
+	/**
+	 * Moves the contents of one directory into another, one child at a time.
+	 *
+	 * @param moved
+	 *            gets the names of the children moved, also when a later one
+	 *            fails to move
+	 */
+	private static void moveChildren(File from, File to, List<String> moved) throws IOException {
+		File[] children = from.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			Files.move(child.toPath(), new File(to, child.getName()).toPath());
+			moved.add(child.getName());
+		}
+	}
+
+	/**
+	 * Moves a tree into another one, descending into the directories both have.
+	 */
+	static void mergeChildren(File from, File to) throws IOException {
+		File[] children = from.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			File existing = new File(to, child.getName());
+			if (isDirectory(child) && isDirectory(existing)) {
+				mergeChildren(child, existing);
+				Files.delete(child.toPath());
+			} else {
+				Files.move(child.toPath(), existing.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	private static boolean isDirectory(File file) {
+		return file.isDirectory() && !Files.isSymbolicLink(file.toPath());
+	}
+
+	/**
+	 * Swaps the contents of the target directory with those of the staging
+	 * directory one child at a time, for a target directory that cannot be
+	 * renamed. When a move fails, the children moved so far are put back and
+	 * the target directory is left as it was.
+	 *
+	 * @param target
+	 *            the target directory
+	 * @param staged
+	 *            the staging directory, deleted once it is empty
+	 * @param old
+	 *            the empty directory the old contents go to
+	 */
+	static void swapChildren(File target, File staged, File old) throws IOException {
+		List<String> movedOut = new ArrayList<>();
+		List<String> movedIn = new ArrayList<>();
+		try {
+			moveChildren(target, old, movedOut);
+			moveChildren(staged, target, movedIn);
+		} catch (IOException e) {
+			try {
+				moveBack(target, staged, movedIn);
+				moveBack(old, target, movedOut);
+			} catch (IOException restore) {
+				// The old contents left in the trash are deleted by the next sweep, the checkout fails anyway
+				e.addSuppressed(restore);
+			}
+			throw e;
+		}
+		Files.delete(staged.toPath());
+	}
+
+	/**
+	 * Moves the named children back, the last moved first.
+	 */
+	private static void moveBack(File from, File to, List<String> moved) throws IOException {
+		for (int i = moved.size() - 1; i >= 0; i--) {
+			String name = moved.get(i);
+			Files.move(new File(from, name).toPath(), new File(to, name).toPath());
+			moved.remove(i);
+		}
+	}
+
+	/**
+	 * Creates the staging directory on the node, returning its name.
+	 */
+	private static final class Stage extends MasterToSlaveFileCallable<String> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		public String invoke(File target, VirtualChannel channel) throws IOException, InterruptedException {
+			sweep(target);
+			Path staging = Files.createTempDirectory(target.getAbsoluteFile().getParentFile().toPath(),
+					target.getName() + STAGING);
+			if (target.isDirectory()) {
+				// A temporary directory is private, the swapped in one keeps the permissions of the old one
+				try {
+					Files.setPosixFilePermissions(staging, Files.getPosixFilePermissions(target.toPath()));
+				} catch (UnsupportedOperationException e) {
+					// Not a POSIX file system
+				}
+			}
+			return staging.toFile().getName();
+		}
+	}
+
+	/**
+	 * Swaps the staging directory in on the node.
+	 */
+	private static final class Swap extends MasterToSlaveFileCallable<Void> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The staging directory path on the node. */
+		private final String staging;
+
+		Swap(String staging) {
+			this.staging = staging;
+		}
+
+		public Void invoke(File target, VirtualChannel channel) throws IOException, InterruptedException {
+			File parent = target.getAbsoluteFile().getParentFile();
+			File staged = new File(staging);
+			File trash = Files.createTempDirectory(parent.toPath(), target.getName() + TRASH).toFile();
+			File old = new File(trash, target.getName());
+			boolean renamed;
+			try {
+				Files.move(target.toPath(), old.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				renamed = true;
+			} catch (IOException e) {
+				// The directory itself is held, like a workspace in use on Windows
+				LOGGER.log(Level.FINE, "Swapping the children of " + target + " instead", e);
+				renamed = false;
+			}
+			if (renamed) {
+				// The target directory is missing only for the moment between the two renames
+				try {
+					Files.move(staged.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					Files.move(old.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					throw e;
+				}
+			} else {
+				old.mkdir();
+				swapChildren(target, staged, old);
+			}
+			deleteLater(trash);
+			return null;
+		}
+	}
+
+	/**
+	 * Merges the staging directory in on the node.
+	 */
+	private static final class Merge extends MasterToSlaveFileCallable<Void> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		/** The staging directory path on the node. */
+		private final String staging;
+
+		Merge(String staging) {
+			this.staging = staging;
+		}
+
+		public Void invoke(File target, VirtualChannel channel) throws IOException, InterruptedException {
+			File staged = new File(staging);
+			target.mkdirs();
+			mergeChildren(staged, target);
+			Files.delete(staged.toPath());
+			return null;
+		}
+	}
+
+	/**
+	 * Moves the contents of a directory out of the way on the node.
+	 */
+	private static final class Clear extends MasterToSlaveFileCallable<Void> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 1L;
+
+		public Void invoke(File directory, VirtualChannel channel) throws IOException, InterruptedException {
+			if (!directory.isDirectory()) {
+				return null;
+			}
+			File trash = Files.createTempDirectory(directory.getAbsoluteFile().getParentFile().toPath(),
+					directory.getName() + TRASH).toFile();
+			try {
+				moveChildren(directory, trash, new ArrayList<>());
+			} catch (IOException e) {
+				// Another file system is mounted below the directory, delete the rest in place
+				LOGGER.log(Level.FINE, "Clearing " + directory + " in place", e);
+				Util.deleteContentsRecursive(directory);
+			}
+			deleteLater(trash);
+			return null;
+		}
+	}
+}
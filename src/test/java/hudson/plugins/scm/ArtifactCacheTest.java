@@ -0,0 +1,71 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArtifactCacheTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void blobStaysWhileAnyExecutorHoldsIt() throws Exception {
+		// Every blob is over the limit, so each store evicts all blobs that are not leased
+		ArtifactCache cache = new ArtifactCache(new FilePath(tmp.newFolder("cache")), 1);
+		String a = store(cache, "artifact a");
+		assertNotNull(cache.acquire(a));
+
+		// The first executor is done, the second still reads the blob
+		cache.release(a);
+		store(cache, "artifact b");
+		assertTrue(blob(cache, a).exists());
+
+		cache.release(a);
+		store(cache, "artifact c");
+		assertFalse(blob(cache, a).exists());
+	}
+
+	@Test
+	public void missingBlobIsNotLeased() throws Exception {
+		ArtifactCache cache = new ArtifactCache(new FilePath(tmp.newFolder("cache")), 1);
+		String a = sha256("artifact a");
+		assertNull(cache.acquire(a));
+		assertFalse(cache.contains(a));
+		store(cache, "artifact a");
+		cache.release(a);
+		assertTrue(cache.contains(a));
+		// A presence check takes no lease, the next store evicts the blob
+		store(cache, "artifact b");
+		assertFalse(blob(cache, a).exists());
+	}
+
+	/**
+	 * Stores a blob and keeps the lease the store took.
+	 */
+	private static String store(ArtifactCache cache, String content) throws Exception {
+		FilePath temp = cache.createTempFile();
+		temp.write(content, "UTF-8");
+		String sha256 = sha256(content);
+		cache.store(temp, sha256, false);
+		return sha256;
+	}
+
+	private static FilePath blob(ArtifactCache cache, String sha256) {
+		return cache.getRoot().child("sha256").child(sha256);
+	}
+
+	private static String sha256(String content) throws Exception {
+		return ArtifactDownload.hex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+	}
+}
@@ -0,0 +1,176 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArtifactDownloadTest {
+
+	private static final byte[] CONTENT = "the artifact content".getBytes(StandardCharsets.UTF_8);
+
+	/** Large enough for three segments. */
+	private static final byte[] LARGE = new byte[(int) (3 * ArtifactDownload.MIN_SEGMENT_SIZE) + 12345];
+
+	static {
+		new Random(42).nextBytes(LARGE);
+	}
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private HttpServer server;
+
+	@Before
+	public void serve() throws Exception {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/artifact.zip", exchange -> {
+			// Ignores Range, a busy partial file must not be resumed anyway
+			exchange.sendResponseHeaders(200, CONTENT.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(CONTENT);
+			}
+		});
+		server.createContext("/large.bin", exchange -> {
+			exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().add("Content-Length", Integer.toString(LARGE.length));
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+				return;
+			}
+			String[] bounds = range.substring("bytes=".length()).split("-");
+			int from = Integer.parseInt(bounds[0]);
+			int to = Integer.parseInt(bounds[1]);
+			exchange.sendResponseHeaders(206, to - from + 1);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(LARGE, from, to - from + 1);
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void stop() {
+		server.stop(0);
+	}
+
+	@Test
+	public void lockedPartialFileIsLeftAlone() throws Exception {
+		String sha256 = ArtifactDownload.hex(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+		File partial = tmp.newFolder("partial");
+		File part = new File(partial, sha256 + ".part");
+		Files.write(part.toPath(), "bytes of another download".getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(partial, sha256 + ".validator").toPath(), "\"etag\"".getBytes(StandardCharsets.UTF_8));
+
+		File target = new File(tmp.getRoot(), "artifact.zip");
+		try (FileChannel channel = FileChannel.open(new File(partial, sha256 + ".lock").toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock = channel.lock()) {
+			ArtifactDownload.Result result = download(sha256, partial).invoke(target, null);
+			assertEquals(CONTENT.length, result.getBytes());
+			assertEquals(0, result.getResumedBytes());
+		}
+		assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+		assertEquals("bytes of another download", new String(Files.readAllBytes(part.toPath()), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void unlockedPartialFileIsUsed() throws Exception {
+		String sha256 = ArtifactDownload.hex(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+		File partial = tmp.newFolder("partial");
+		File target = new File(tmp.getRoot(), "artifact.zip");
+		download(sha256, partial).invoke(target, null);
+		assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+		// The finished partial file became the target
+		assertFalse(new File(partial, sha256 + ".part").exists());
+	}
+
+	@Test
+	public void localFileOnlyForSegmentsOrResuming() throws Exception {
+		String sha256 = ArtifactDownload.hex(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+		File partial = tmp.newFolder("partial");
+		assertFalse(download(sha256, partial).needsLocalFile());
+		assertTrue(download(sha256, partial, 4).needsLocalFile());
+
+		Files.write(new File(partial, sha256 + ".part").toPath(), CONTENT);
+		assertTrue(download(sha256, partial).needsLocalFile());
+	}
+
+	@Test
+	public void streamWritesTheTarget() throws Exception {
+		String sha256 = ArtifactDownload.hex(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+		File target = new File(tmp.getRoot(), "artifact.zip");
+		ArtifactDownload.Result result = download(sha256, tmp.newFolder("partial")).streamTo(new FilePath(target));
+		assertEquals(CONTENT.length, result.getBytes());
+		assertTrue(result.isVerified());
+		assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+	}
+
+	@Test
+	public void streamWithWrongChecksumLeavesNoTarget() throws Exception {
+		String sha256 = ArtifactDownload.hex(MessageDigest.getInstance("SHA-256").digest(new byte[1]));
+		File target = new File(tmp.getRoot(), "artifact.zip");
+		ArtifactDownload download = download(sha256, tmp.newFolder("partial"));
+		assertThrows(Checksums.MismatchException.class, () -> download.streamTo(new FilePath(target)));
+		assertFalse(target.exists());
+	}
+
+	@Test
+	public void segmentsAreVerifiedInOrder() throws Exception {
+		String sha256 = ArtifactDownload.hex(MessageDigest.getInstance("SHA-256").digest(LARGE));
+		File target = new File(tmp.getRoot(), "large.bin");
+		ArtifactDownload.Result result = download("/large.bin", sha256, null, 3).invoke(target, null);
+		assertEquals(LARGE.length, result.getBytes());
+		assertTrue(result.isVerified());
+		assertArrayEquals(LARGE, Files.readAllBytes(target.toPath()));
+	}
+
+	@Test
+	public void segmentsWithWrongChecksumLeaveNoBytes() throws Exception {
+		String sha256 = ArtifactDownload.hex(MessageDigest.getInstance("SHA-256").digest(CONTENT));
+		File target = new File(tmp.getRoot(), "large.bin");
+		ArtifactDownload download = download("/large.bin", sha256, null, 3);
+		assertThrows(Checksums.MismatchException.class, () -> download.invoke(target, null));
+		assertEquals(0, target.length());
+	}
+
+	private ArtifactDownload download(String sha256, File partial) {
+		return download(sha256, partial, 1);
+	}
+
+	private ArtifactDownload download(String sha256, File partial, int segments) {
+		return download("/artifact.zip", sha256, partial, segments);
+	}
+
+	private ArtifactDownload download(String path, String sha256, File partial, int segments) {
+		String url = "http://localhost:" + server.getAddress().getPort() + path;
+		return new ArtifactDownload(url, Collections.emptyMap(), segments, new Checksums(sha256, null, null),
+				partial != null ? partial.getPath() : null, new ArtifactoryHttpClient.Settings(5, 5, false));
+	}
+}
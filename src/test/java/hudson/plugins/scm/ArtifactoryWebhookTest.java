@@ -0,0 +1,147 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.FreeStyleProject;
+import hudson.util.Secret;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ArtifactoryWebhookTest {
+
+	private static final String TOKEN = "webhook-token";
+
+	private static final String DEPLOYED = deployed("https://artifactory.example.com", "com/acme/app/app-42.zip");
+
+	private static final String URL = "https://artifactory.example.com/artifactory/libs-release/com/acme/app";
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void deployEventSchedulesWatchingJob() throws Exception {
+		FreeStyleProject watching = project("watching", URL);
+		FreeStyleProject other = project("other", "https://artifactory.example.com/artifactory/libs-release/com/acme/lib");
+		setToken(TOKEN);
+
+		// No crumb is sent, as Artifactory cannot send one
+		HttpResponse<String> response = post(TOKEN);
+		assertEquals(200, response.statusCode());
+		assertEquals("Scheduled 1 job(s): watching", response.body());
+		assertNotNull(j.jenkins.getQueue().getItem(watching));
+		assertNull(j.jenkins.getQueue().getItem(other));
+	}
+
+	@Test
+	public void deployElsewhereSchedulesNothing() throws Exception {
+		FreeStyleProject watching = project("watching", URL);
+		setToken(TOKEN);
+
+		// Another Artifactory instance, and another folder of the same repo
+		for (String event : new String[] { deployed("https://other.example.com", "com/acme/app/app-42.zip"),
+				deployed("https://artifactory.example.com", "org/other/app/app-42.zip") }) {
+			HttpResponse<String> response = post(event, TOKEN, "");
+			assertEquals(200, response.statusCode());
+			assertEquals("Scheduled 0 job(s)", response.body());
+		}
+		assertNull(j.jenkins.getQueue().getItem(watching));
+	}
+
+	@Test
+	public void eventWithoutOriginIsRejected() throws Exception {
+		FreeStyleProject watching = project("watching", URL);
+		setToken(TOKEN);
+
+		String event = "{\"event_type\":\"deployed\",\"data\":{\"repo_key\":\"libs-release\","
+				+ "\"path\":\"com/acme/app/app-42.zip\",\"name\":\"app-42.zip\"}}";
+		assertEquals(400, post(event, TOKEN, "").statusCode());
+		assertNull(j.jenkins.getQueue().getItem(watching));
+	}
+
+	@Test
+	public void tokenInQueryIsForbidden() throws Exception {
+		FreeStyleProject watching = project("watching", URL);
+		setToken(TOKEN);
+
+		assertEquals(403, post(DEPLOYED, null, "?token=" + TOKEN).statusCode());
+		assertNull(j.jenkins.getQueue().getItem(watching));
+	}
+
+	@Test
+	public void specMatchesHostRepoAndFolder() {
+		ArtifactSpec spec = new ArtifactSpec("https://artifactory.example.com:8443/artifactory/libs-release/com/acme/app");
+		assertTrue(ArtifactoryWebhook.matches(spec, "artifactory.example.com", "libs-release", "com/acme/app", "app-42.zip"));
+		// Below the configured folder, like a folder per version
+		assertTrue(ArtifactoryWebhook.matches(spec, "artifactory.example.com", "libs-release", "com/acme/app/42", "app-42.zip"));
+		assertFalse(ArtifactoryWebhook.matches(spec, "other.example.com", "libs-release", "com/acme/app", "app-42.zip"));
+		assertFalse(ArtifactoryWebhook.matches(spec, "artifactory.example.com", "libs-snapshot", "com/acme/app", "app-42.zip"));
+		assertFalse(ArtifactoryWebhook.matches(spec, "artifactory.example.com", "libs-release", "com/acme", "app-42.zip"));
+		assertFalse(ArtifactoryWebhook.matches(spec, "artifactory.example.com", "libs-release", "com/acme/application", "app-42.zip"));
+		assertFalse(ArtifactoryWebhook.matches(spec, "artifactory.example.com", "libs-release", "com/acme/app", "lib-42.zip"));
+	}
+
+	@Test
+	public void badTokenIsForbidden() throws Exception {
+		FreeStyleProject watching = project("watching", URL);
+		setToken(TOKEN);
+
+		assertEquals(403, post("wrong-token").statusCode());
+		assertEquals(403, post(null).statusCode());
+		assertNull(j.jenkins.getQueue().getItem(watching));
+	}
+
+	@Test
+	public void noTokenConfiguredIsNotFound() throws Exception {
+		FreeStyleProject watching = project("watching", URL);
+
+		assertEquals(404, post(TOKEN).statusCode());
+		assertNull(j.jenkins.getQueue().getItem(watching));
+	}
+
+	/**
+	 * Creates a job checking out the artifact, tied to a label no node has so
+	 * that a scheduled build stays in the queue.
+	 */
+	private FreeStyleProject project(String name, String url) throws Exception {
+		FreeStyleProject project = j.createFreeStyleProject(name);
+		project.setScm(new ArtifactorySCM(url, "", false, null));
+		project.setAssignedLabel(j.jenkins.getLabel("nowhere"));
+		return project;
+	}
+
+	private void setToken(String token) {
+		j.jenkins.getDescriptorByType(ArtifactorySCM.ArtifactorySCMDescriptorImpl.class)
+				.setWebhookToken(Secret.fromString(token));
+	}
+
+	private HttpResponse<String> post(String token) throws Exception {
+		return post(DEPLOYED, token, "");
+	}
+
+	private HttpResponse<String> post(String event, String token, String query) throws Exception {
+		HttpRequest.Builder request = HttpRequest.newBuilder(
+				URI.create(j.getURL() + ArtifactoryWebhook.URL_NAME + "/" + query))
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(event));
+		if (token != null) {
+			request.header(ArtifactoryWebhook.TOKEN_HEADER, token);
+		}
+		return HttpClient.newHttpClient().send(request.build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	private static String deployed(String origin, String path) {
+		return "{\"event_type\":\"deployed\",\"jpd_origin\":\"" + origin + "\",\"data\":{\"repo_key\":\"libs-release\","
+				+ "\"path\":\"" + path + "\",\"name\":\"" + path.substring(path.lastIndexOf('/') + 1) + "\"}}";
+	}
+}
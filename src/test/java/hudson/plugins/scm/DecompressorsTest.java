@@ -0,0 +1,125 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class DecompressorsTest {
+
+	private static final byte[] CONTENT = "compressed artifact content".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	public void detectsGzipAndDecompressesAhead() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (OutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(CONTENT);
+		}
+		assertRoundTrip(Decompressors.GZIP, bytes.toByteArray());
+	}
+
+	@Test
+	public void detectsBzip2AndDecompressesAhead() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (OutputStream out = new BZip2CompressorOutputStream(bytes)) {
+			out.write(CONTENT);
+		}
+		assertRoundTrip(Decompressors.BZIP2, bytes.toByteArray());
+	}
+
+	@Test
+	public void detectsXzByItsMagic() throws Exception {
+		assertSame(Decompressors.XZ, detect(new byte[] { (byte) 0xfd, '7', 'z', 'X', 'Z', 0, 0, 4 }));
+		// One byte short of the magic
+		assertNull(detect(new byte[] { (byte) 0xfd, '7', 'z', 'X', 'Z' }));
+	}
+
+	@Test
+	public void detectsZstdByItsMagic() throws Exception {
+		assertSame(Decompressors.ZSTD, detect(new byte[] { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0x24, 0 }));
+	}
+
+	@Test
+	public void leavesOtherStreamsAlone() throws Exception {
+		assertNull(detect(new byte[] { 'P', 'K', 3, 4, 0, 0 }));
+		assertNull(detect(new byte[0]));
+	}
+
+	@Test
+	public void closeDoesNotWaitForBlockedRead() throws Exception {
+		BlockingInputStream in = new BlockingInputStream();
+		InputStream decompressed = Decompressors.openReadAhead(new Decompressors.Decompressor("identity", new byte[0]) {
+			@Override
+			public InputStream open(InputStream in) {
+				return in;
+			}
+		}, in);
+		assertTrue(in.reading.await(10, TimeUnit.SECONDS));
+
+		long start = System.nanoTime();
+		decompressed.close();
+		assertEquals(0, in.closed.getCount());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+	}
+
+	private static void assertRoundTrip(Decompressors.Decompressor format, byte[] compressed) throws IOException {
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(compressed));
+		assertSame(format, Decompressors.detect(in));
+		try (InputStream decompressed = Decompressors.openReadAhead(format, in)) {
+			assertArrayEquals(CONTENT, decompressed.readAllBytes());
+		}
+	}
+
+	private static Decompressors.Decompressor detect(byte[] bytes) throws IOException {
+		InputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes));
+		Decompressors.Decompressor format = Decompressors.detect(in);
+		// Detection leaves the stream at its start
+		assertEquals(bytes.length > 0 ? bytes[0] & 0xff : -1, in.read());
+		return format;
+	}
+
+	/**
+	 * A stream whose read blocks until it is closed and ignores interrupts, like
+	 * a socket.
+	 */
+	private static final class BlockingInputStream extends InputStream {
+
+		private final CountDownLatch reading = new CountDownLatch(1);
+
+		private final CountDownLatch closed = new CountDownLatch(1);
+
+		@Override
+		public int read() throws IOException {
+			reading.countDown();
+			while (true) {
+				try {
+					closed.await();
+					throw new IOException("Stream closed");
+				} catch (InterruptedException e) {
+					// Not interruptible
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+	}
+}
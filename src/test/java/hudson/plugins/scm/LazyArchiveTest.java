@@ -0,0 +1,143 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LazyArchiveTest {
+
+	private static final byte[] STORED = "stored entry content".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] DEFLATED = repeat("deflated entry content, ", 1000);
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void readsEntriesUnderTheirMappedPaths() throws Exception {
+		File target = tmp.newFolder("workspace");
+		assertEquals(2, keep(target));
+
+		try (LazyArchive archive = LazyArchive.open(target)) {
+			assertEquals(Arrays.asList("bin/deflated.txt", "stored.txt"), Arrays.asList(archive.list().toArray()));
+			assertTrue(archive.contains("/bin\\deflated.txt"));
+			assertArrayEquals(STORED, readAll(archive, "stored.txt"));
+			assertArrayEquals(DEFLATED, readAll(archive, "bin/deflated.txt"));
+			assertThrows(FileNotFoundException.class, () -> archive.read("app/stored.txt"));
+		}
+	}
+
+	@Test
+	public void corruptEntryFailsAtItsEnd() throws Exception {
+		File target = tmp.newFolder("workspace");
+		keep(target);
+		File[] kept = new File(target, LazyArchive.DIRECTORY).listFiles((dir, name) -> name.endsWith(".zip"));
+		assertEquals(1, kept.length);
+		flip(kept[0], STORED);
+
+		try (LazyArchive archive = LazyArchive.open(target)) {
+			IOException e = assertThrows(IOException.class, () -> readAll(archive, "stored.txt"));
+			assertTrue(e.getMessage(), e.getMessage().contains("stored.txt"));
+			// The other entry is not affected
+			assertArrayEquals(DEFLATED, readAll(archive, "bin/deflated.txt"));
+		}
+	}
+
+	@Test
+	public void keepRemovesArchivesOfArtifactsGoneFromTheDirectory() throws Exception {
+		File target = tmp.newFolder("workspace");
+		keep(target, "old", Collections.singletonList("old"));
+		keep(target, "other", Arrays.asList("other", "artifact"));
+		keep(target, "artifact", Arrays.asList("other", "artifact"));
+
+		// The archive of "old" is gone, the one of "other" stays
+		assertEquals(4, new File(target, LazyArchive.DIRECTORY).list().length);
+	}
+
+	@Test
+	public void pathsOfTwoArchivesFailTheOpen() throws Exception {
+		File target = tmp.newFolder("workspace");
+		keep(target, "other", Arrays.asList("other", "artifact"));
+		keep(target, "artifact", Arrays.asList("other", "artifact"));
+
+		IOException e = assertThrows(IOException.class, () -> LazyArchive.open(target));
+		assertTrue(e.getMessage(), e.getMessage().contains("both have an entry"));
+	}
+
+	private int keep(File target) throws Exception {
+		return keep(target, "artifact", Collections.singletonList("artifact"));
+	}
+
+	/**
+	 * Keeps an archive with a single top level folder, stripped in auto mode.
+	 */
+	private int keep(File target, String key, List<String> owners) throws Exception {
+		File zip = tmp.newFile(key + ".zip");
+		try (OutputStream out = Files.newOutputStream(zip.toPath()); ZipOutputStream z = new ZipOutputStream(out)) {
+			ZipEntry stored = new ZipEntry("app/stored.txt");
+			stored.setMethod(ZipEntry.STORED);
+			stored.setSize(STORED.length);
+			CRC32 crc = new CRC32();
+			crc.update(STORED);
+			stored.setCrc(crc.getValue());
+			z.putNextEntry(stored);
+			z.write(STORED);
+			z.putNextEntry(new ZipEntry("app/bin/"));
+			z.putNextEntry(new ZipEntry("app/bin/deflated.txt"));
+			z.write(DEFLATED);
+			z.closeEntry();
+		}
+		return new LazyArchive.Keep(target.getPath(), key, key + ".zip", EntryFilter.ALL, true, owners).invoke(zip, null);
+	}
+
+	/**
+	 * Flips a byte of the content of a stored entry inside an archive.
+	 */
+	private static void flip(File archive, byte[] content) throws IOException {
+		byte[] bytes = Files.readAllBytes(archive.toPath());
+		for (int i = 0; i + content.length <= bytes.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + content.length), content)) {
+				try (RandomAccessFile file = new RandomAccessFile(archive, "rw")) {
+					file.seek(i);
+					file.write(content[0] ^ 0xff);
+				}
+				return;
+			}
+		}
+		throw new AssertionError("Content not found in " + archive);
+	}
+
+	private static byte[] readAll(LazyArchive archive, String path) throws IOException {
+		try (InputStream in = archive.read(path)) {
+			return in.readAllBytes();
+		}
+	}
+
+	private static byte[] repeat(String s, int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			sb.append(s);
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,110 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Times {@link ParallelUnzip} against the serial {@link FilePath#unzipFrom}
+ * on the same archive and checks both write the same files. It only runs when
+ * asked for with {@code -Dhudson.plugins.scm.benchmark=true} and logs the
+ * timings, {@link ParallelUnzipTest} covers the extraction itself.
+ *
+ * The archive size defaults to 64 MB of entries and can be raised with
+ * {@code -Dhudson.plugins.scm.benchmark.mb=N}, the threads default to one per
+ * processor and can be set with {@code -Dhudson.plugins.scm.benchmark.threads=N}.
+ */
+public class ParallelUnzipBenchmarkTest {
+
+	private static final Logger LOGGER = Logger.getLogger(ParallelUnzipBenchmarkTest.class.getName());
+
+	/** The size of one entry. */
+	private static final int ENTRY_SIZE = 256 * 1024;
+
+	/** Rounds timed per extractor, the best one counts. */
+	private static final int ROUNDS = 3;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void parallelAgainstUnzipFrom() throws Exception {
+		Assume.assumeTrue("Run with -Dhudson.plugins.scm.benchmark=true", Boolean.getBoolean("hudson.plugins.scm.benchmark"));
+		int megabytes = Integer.getInteger("hudson.plugins.scm.benchmark.mb", 64);
+		int threads = Integer.getInteger("hudson.plugins.scm.benchmark.threads", 0);
+		File archive = tmp.newFile("artifact.zip");
+		int entries = megabytes * 1024 * 1024 / ENTRY_SIZE;
+		writeArchive(archive, entries, ENTRY_SIZE);
+
+		long serial = Long.MAX_VALUE;
+		long parallel = Long.MAX_VALUE;
+		File serialDir = null;
+		File parallelDir = null;
+		for (int round = 0; round < ROUNDS; round++) {
+			serialDir = tmp.newFolder();
+			long start = System.nanoTime();
+			try (InputStream in = Files.newInputStream(archive.toPath())) {
+				new FilePath(serialDir).unzipFrom(in);
+			}
+			serial = Math.min(serial, System.nanoTime() - start);
+
+			parallelDir = tmp.newFolder();
+			start = System.nanoTime();
+			int written = new FilePath(archive).act(new ParallelUnzip(parallelDir.getPath(), threads,
+					new EntryFilter(null, null, 0)));
+			parallel = Math.min(parallel, System.nanoTime() - start);
+			assertEquals(entries, written);
+		}
+		LOGGER.log(Level.INFO, "{0} MB in {1} entries, {2} processors, threads={3}: FilePath.unzipFrom {4} ms, "
+				+ "ParallelUnzip {5} ms", new Object[] { megabytes, entries, Runtime.getRuntime().availableProcessors(),
+						threads, serial / 1000000, parallel / 1000000 });
+
+		for (int i = 0; i < entries; i++) {
+			String name = name(i);
+			assertArrayEquals(name, Files.readAllBytes(new File(serialDir, name).toPath()),
+					Files.readAllBytes(new File(parallelDir, name).toPath()));
+		}
+	}
+
+	/**
+	 * Writes entries of half random, half repeated bytes, which deflate about
+	 * like build output does.
+	 */
+	static void writeArchive(File archive, int entries, int entrySize) throws IOException {
+		Random random = new Random(42);
+		byte[] data = new byte[entrySize];
+		try (OutputStream out = Files.newOutputStream(archive.toPath());
+				ZipOutputStream zip = new ZipOutputStream(out)) {
+			for (int i = 0; i < entries; i++) {
+				random.nextBytes(data);
+				for (int j = 0; j < data.length; j += 2) {
+					data[j] = (byte) (j >> 8);
+				}
+				zip.putNextEntry(new ZipEntry(name(i)));
+				zip.write(data);
+				zip.closeEntry();
+			}
+		}
+	}
+
+	static String name(int i) {
+		return "dir" + (i % 16) + "/file" + i + ".bin";
+	}
+}
@@ -0,0 +1,44 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelUnzipTest {
+
+	/** Enough entries for every thread to extract several. */
+	private static final int ENTRIES = 32;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void writesWhatUnzipFromWrites() throws Exception {
+		File archive = tmp.newFile("artifact.zip");
+		ParallelUnzipBenchmarkTest.writeArchive(archive, ENTRIES, 16 * 1024);
+
+		File serialDir = tmp.newFolder("serial");
+		try (InputStream in = Files.newInputStream(archive.toPath())) {
+			new FilePath(serialDir).unzipFrom(in);
+		}
+		File parallelDir = tmp.newFolder("parallel");
+		int written = new FilePath(archive).act(new ParallelUnzip(parallelDir.getPath(), 4,
+				new EntryFilter(null, null, 0)));
+		assertEquals(ENTRIES, written);
+
+		for (int i = 0; i < ENTRIES; i++) {
+			String name = ParallelUnzipBenchmarkTest.name(i);
+			assertArrayEquals(name, Files.readAllBytes(new File(serialDir, name).toPath()),
+					Files.readAllBytes(new File(parallelDir, name).toPath()));
+		}
+	}
+}
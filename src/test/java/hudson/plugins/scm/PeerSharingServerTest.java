@@ -0,0 +1,60 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Restarts the peer server of this JVM, like an agent does when its cache or
+ * the peer settings changed.
+ */
+public class PeerSharingServerTest {
+
+	private static final String THREAD_NAME = "ArtifactorySCM peer server";
+
+	private static final String SHA256 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+	/** How long to wait for the threads of a stopped server to end. */
+	private static final long STOP_TIMEOUT = 10000;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void restartEndsTheThreadsOfTheOldServer() throws Exception {
+		PeerSharing.Endpoint first = new PeerSharing.Start(0, "127.0.0.1").invoke(tmp.newFolder("first"), null);
+		// Without a ticket, answered by a thread of the server
+		assertEquals(403, get(first));
+		assertNotEquals(0, serverThreads());
+
+		PeerSharing.Endpoint second = new PeerSharing.Start(0, "127.0.0.1").invoke(tmp.newFolder("second"), null);
+		long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+		while (serverThreads() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, serverThreads());
+		assertEquals(403, get(second));
+	}
+
+	private static int get(PeerSharing.Endpoint endpoint) throws Exception {
+		return HttpClient.newHttpClient().send(HttpRequest.newBuilder(endpoint.blob(SHA256)).GET().build(),
+				HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+
+	private static int serverThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(THREAD_NAME) && thread.isAlive()) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
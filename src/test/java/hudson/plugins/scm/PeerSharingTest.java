@@ -0,0 +1,148 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Fetches a blob on one agent that another agent holds, with a local HTTP
+ * server standing in for Artifactory.
+ */
+public class PeerSharingTest {
+
+	private static final String CONTENT = "artifact shared between agents";
+
+	private static final String PATH = "/artifactory/libs-release/com/acme/app/app-1.zip";
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private HttpServer artifactory;
+
+	/** The downloads Artifactory served. */
+	private final AtomicInteger downloads = new AtomicInteger();
+
+	private String sha256;
+
+	private ArtifactorySCM.ArtifactorySCMDescriptorImpl descriptor;
+
+	@Before
+	public void setUp() throws Exception {
+		byte[] content = CONTENT.getBytes(StandardCharsets.UTF_8);
+		sha256 = ArtifactDownload.hex(MessageDigest.getInstance("SHA-256").digest(content));
+		artifactory = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		artifactory.createContext(PATH, exchange -> {
+			downloads.incrementAndGet();
+			exchange.sendResponseHeaders(200, content.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(content);
+			}
+		});
+		artifactory.start();
+
+		descriptor = j.jenkins.getDescriptorByType(ArtifactorySCM.ArtifactorySCMDescriptorImpl.class);
+		descriptor.setCacheEnabled(true);
+		descriptor.setPeerSharing(true);
+		descriptor.setDownloadOnAgent(true);
+		// Both agents run on this machine
+		descriptor.setPeerBindAddress("127.0.0.1");
+	}
+
+	@After
+	public void tearDown() {
+		artifactory.stop(0);
+	}
+
+	@Test
+	public void peerHitSparesArtifactory() throws Exception {
+		DumbSlave holder = j.createOnlineSlave();
+		DumbSlave fetcher = j.createOnlineSlave();
+		checkout(holder);
+		assertEquals(1, downloads.get());
+
+		String log = checkout(fetcher);
+		assertTrue(log, log.contains("Fetched sha256 " + sha256 + " from peer " + holder.getNodeName()));
+		assertEquals(1, downloads.get());
+	}
+
+	@Test
+	public void checksumMismatchFallsBackToArtifactory() throws Exception {
+		DumbSlave holder = j.createOnlineSlave();
+		DumbSlave fetcher = j.createOnlineSlave();
+		checkout(holder);
+		// The blob changed on the holder's disk since it was verified
+		cache(holder).getRoot().child("sha256").child(sha256).write("tampered", "UTF-8");
+
+		String log = checkout(fetcher);
+		assertTrue(log, log.contains("Peer " + holder.getNodeName() + " could not send sha256 " + sha256));
+		assertFalse(log, log.contains("Fetched sha256"));
+		assertEquals(2, downloads.get());
+	}
+
+	@Test
+	public void peerDownFallsBackToArtifactory() throws Exception {
+		DumbSlave holder = j.createOnlineSlave();
+		DumbSlave fetcher = j.createOnlineSlave();
+		checkout(holder);
+		// Its peer server goes down with the agent process
+		j.jenkins.removeNode(holder);
+
+		String log = checkout(fetcher);
+		assertTrue(log, log.contains("Peer " + holder.getNodeName() + " could not send sha256 " + sha256));
+		assertEquals(2, downloads.get());
+	}
+
+	/**
+	 * Brings the blob into the cache of an agent like a checkout does, and
+	 * offers it to the other agents.
+	 *
+	 * @return the log of the checkout
+	 */
+	private String checkout(Node node) throws Exception {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		StreamTaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+		FilePath workspace = node.getRootPath().child("workspace");
+		ArtifactCache cache = cache(node);
+		FilePath temp = cache.createTempFile();
+		try {
+			String url = "http://localhost:" + artifactory.getAddress().getPort() + PATH;
+			boolean verified = ArtifactorySCM.fetchBlob(temp, cache, workspace, "localhost", "job", url,
+					Collections.emptyMap(), new Checksums(sha256, null, null), null, descriptor, listener);
+			assertTrue(verified);
+			assertEquals(CONTENT, temp.readToString());
+			cache.store(temp, sha256, verified);
+			cache.release(sha256);
+		} finally {
+			temp.delete();
+		}
+		ArtifactorySCM.share(workspace, cache, sha256, descriptor);
+		listener.getLogger().flush();
+		return log.toString("UTF-8");
+	}
+
+	private ArtifactCache cache(Node node) {
+		return ArtifactCache.forWorkspace(node.getRootPath().child("workspace"), descriptor.getCacheMaxSizeBytes());
+	}
+}
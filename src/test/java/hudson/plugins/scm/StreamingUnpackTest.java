@@ -0,0 +1,128 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamingUnpackTest {
+
+	private static final byte[] CONTENT = "streamed entry content".getBytes(StandardCharsets.UTF_8);
+
+	private static final int ENTRIES = 2000;
+
+	private static final int PADDING = 256 * 1024;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void zipStreamIsReadPastTheLastEntry() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			// Enough entries for a central directory larger than what the agent buffers
+			for (int i = 0; i < ENTRIES; i++) {
+				zip.putNextEntry(new ZipEntry("app/bin/tool-" + i + ".txt"));
+				zip.write(CONTENT);
+				zip.closeEntry();
+			}
+		}
+		File target = tmp.newFolder("zip");
+		// The central directory follows the last entry, the checksum covers it too
+		assertEquals(bytes.size(), unpack(bytes.toByteArray(), "app-1.zip", target));
+		assertArrayEquals(CONTENT, Files.readAllBytes(new File(target, "bin/tool-0.txt").toPath()));
+	}
+
+	@Test
+	public void compressedStreamIsReadPastTheCompressedData() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (OutputStream gzip = new GZIPOutputStream(bytes); TarArchiveOutputStream tar = new TarArchiveOutputStream(gzip)) {
+			TarArchiveEntry entry = new TarArchiveEntry("tool.txt");
+			entry.setSize(CONTENT.length);
+			tar.putArchiveEntry(entry);
+			tar.write(CONTENT);
+			tar.closeArchiveEntry();
+		}
+		// Padding some tools add after the gzip member, more than the agent buffers
+		bytes.write(new byte[PADDING]);
+		File target = tmp.newFolder("tar");
+		assertEquals(bytes.size(), unpack(bytes.toByteArray(), "app-1.tar.gz", target));
+		assertArrayEquals(CONTENT, Files.readAllBytes(new File(target, "tool.txt").toPath()));
+	}
+
+	@Test
+	public void patternsMatchBelowTheFolderAllEntriesShare() throws Exception {
+		// The first entry suggests foo/ is the top level folder, the second one shows there is none
+		File zip = tmp.newFile("app-1.zip");
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip.toPath()))) {
+			for (String name : new String[] { "foo/bin/tool.txt", "bin/tool.txt" }) {
+				out.putNextEntry(new ZipEntry(name));
+				out.write(CONTENT);
+				out.closeEntry();
+			}
+		}
+		File target = tmp.newFolder("zip");
+		new StreamingUnpack(zip.getPath(), "app-1.zip", new EntryFilter("bin/**", null, EntryFilter.AUTO))
+				.invoke(target, null);
+		assertArrayEquals(new String[] { "bin" }, target.list());
+		assertArrayEquals(new String[] { "tool.txt" }, new File(target, "bin").list());
+	}
+
+	@Test
+	public void patternsMatchBelowTheFolderOfATar() throws Exception {
+		File tar = tmp.newFile("app-1.tar");
+		try (TarArchiveOutputStream out = new TarArchiveOutputStream(Files.newOutputStream(tar.toPath()))) {
+			for (String name : new String[] { "app/readme.txt", "app/bin/tool.txt" }) {
+				TarArchiveEntry entry = new TarArchiveEntry(name);
+				entry.setSize(CONTENT.length);
+				out.putArchiveEntry(entry);
+				out.write(CONTENT);
+				out.closeArchiveEntry();
+			}
+		}
+		File target = tmp.newFolder("tar");
+		new StreamingUnpack(tar.getPath(), "app-1.tar", new EntryFilter("bin/**", null, EntryFilter.AUTO))
+				.invoke(target, null);
+		assertArrayEquals(new String[] { "bin" }, target.list());
+		assertArrayEquals(CONTENT, Files.readAllBytes(new File(target, "bin/tool.txt").toPath()));
+	}
+
+	@Test
+	public void patternsBelowAnUnknownFolderCannotStream() throws Exception {
+		EntryFilter filter = new EntryFilter("bin/**", null, EntryFilter.AUTO);
+		StreamingUnpack unpack = new StreamingUnpack(new ByteArrayInputStream(new byte[0]), "app-1.zip", filter);
+		File target = tmp.newFolder("stream");
+		IOException e = assertThrows(IOException.class, () -> unpack.invoke(target, null));
+		assertTrue(e.getMessage(), e.getMessage().contains("app-1.zip"));
+	}
+
+	/**
+	 * Extracts a stream like the controller sends it.
+	 *
+	 * @return the bytes read from the stream
+	 */
+	private static long unpack(byte[] archive, String fileName, File target) throws IOException, InterruptedException {
+		CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(archive));
+		new StreamingUnpack(in, fileName, EntryFilter.ALL).invoke(target, null);
+		return in.getByteCount();
+	}
+}
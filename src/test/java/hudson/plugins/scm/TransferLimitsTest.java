@@ -0,0 +1,110 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TransferLimitsTest {
+
+	@Test(timeout = 10000)
+	public void waitingJobsTakeTurns() throws Exception {
+		TransferLimits.FairLimit limit = new TransferLimits.FairLimit();
+		limit.acquire("running");
+
+		List<String> granted = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+		// Job a queues three transfers before job b queues its one
+		for (String transfer : Arrays.asList("a1", "a2", "a3", "b1")) {
+			threads.add(waiter(limit, transfer, granted));
+		}
+		limit.release();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(Arrays.asList("a1", "b1", "a2", "a3"), granted);
+	}
+
+	@Test(timeout = 10000)
+	public void interruptedWaiterLeavesTheLine() throws Exception {
+		TransferLimits.FairLimit limit = new TransferLimits.FairLimit();
+		limit.acquire("running");
+
+		List<String> granted = Collections.synchronizedList(new ArrayList<>());
+		Thread interrupted = waiter(limit, "a1", granted);
+		Thread other = waiter(limit, "b1", granted);
+		interrupted.interrupt();
+		interrupted.join();
+		limit.release();
+		other.join();
+		assertEquals(Collections.singletonList("b1"), granted);
+
+		// The permit of b1 was released, nothing is held anymore
+		limit.acquire("c");
+		limit.release();
+	}
+
+	@Test(timeout = 10000)
+	public void largerSizeGrantsWaiters() throws Exception {
+		TransferLimits.FairLimit limit = new TransferLimits.FairLimit();
+		limit.acquire("running");
+
+		List<String> granted = Collections.synchronizedList(new ArrayList<>());
+		Thread waiting = waiter(limit, "a1", granted);
+		limit.setSize(2);
+		waiting.join();
+		assertEquals(Collections.singletonList("a1"), granted);
+	}
+
+	@Test
+	public void bucketHandsOutBytesAtItsRate() throws Exception {
+		TransferLimits.TokenBucket bucket = new TransferLimits.TokenBucket();
+		bucket.setRate(100000);
+		long start = System.nanoTime();
+		// The bucket starts empty, so five takes wait about a second
+		for (int i = 0; i < 5; i++) {
+			bucket.take(20000);
+		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("Took " + millis + " ms", millis >= 900 && millis < 3000);
+	}
+
+	@Test
+	public void bucketWithoutRateDoesNotWait() throws InterruptedIOException {
+		TransferLimits.TokenBucket bucket = new TransferLimits.TokenBucket();
+		bucket.setRate(0);
+		long start = System.nanoTime();
+		bucket.take(Integer.MAX_VALUE);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+	}
+
+	/**
+	 * Starts a transfer of the job named by the transfer's first letter and
+	 * returns once it waits for its turn. It releases its permit right after
+	 * it was granted.
+	 */
+	private static Thread waiter(TransferLimits.FairLimit limit, String transfer, List<String> granted)
+			throws InterruptedException {
+		Thread thread = new Thread(() -> {
+			try {
+				limit.acquire(transfer.substring(0, 1));
+			} catch (InterruptedException e) {
+				return;
+			}
+			granted.add(transfer);
+			limit.release();
+		});
+		thread.start();
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(5);
+		}
+		return thread;
+	}
+}
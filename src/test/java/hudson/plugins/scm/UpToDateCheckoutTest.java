@@ -0,0 +1,86 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the fast path that skips Artifactory on a checkout whose workspace
+ * holds what the last poll still finds.
+ */
+public class UpToDateCheckoutTest {
+
+	private static final String SHA256 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+	private static final String OTHER_SHA256 = "fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+
+	private static final long LAST_MODIFIED = 1700000000000L;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private ArtifactSpec spec;
+
+	private FilePath workspace;
+
+	private ArtifactoryItem latest;
+
+	@Before
+	public void setUp() throws Exception {
+		spec = new ArtifactSpec("https://artifactory.example.com/artifactory/libs-release/com/acme/app");
+		spec.setTargetDirectory("app");
+		workspace = new FilePath(tmp.newFolder("workspace"));
+		latest = new ArtifactoryItem("libs-release", "com/acme/app", "app-42.zip", SHA256);
+		// What the checkout of app-42.zip left behind
+		workspace.child("app").mkdirs();
+		workspace.child("app").child(".app-42.zip-timestamp").touch(LAST_MODIFIED);
+	}
+
+	@Test
+	public void sameArtifactWithTimestampIsUpToDate() throws Exception {
+		assertTrue(ArtifactorySCM.isUpToDate(spec, revision(latest, SHA256), latest, workspace));
+		// Checksums compare regardless of case
+		assertTrue(ArtifactorySCM.isUpToDate(spec, revision(latest, SHA256.toUpperCase()), latest, workspace));
+	}
+
+	@Test
+	public void newArtifactIsNotUpToDate() throws Exception {
+		ArtifactoryItem newer = new ArtifactoryItem("libs-release", "com/acme/app", "app-43.zip", OTHER_SHA256);
+		assertFalse(ArtifactorySCM.isUpToDate(spec, revision(latest, SHA256), newer, workspace));
+	}
+
+	@Test
+	public void sameBytesUnderAnotherNameAreNotUpToDate() throws Exception {
+		ArtifactoryItem renamed = new ArtifactoryItem("libs-release", "com/acme/app", "app-43.zip", SHA256);
+		assertFalse(ArtifactorySCM.isUpToDate(spec, revision(latest, SHA256), renamed, workspace));
+	}
+
+	@Test
+	public void unknownStateIsNotUpToDate() throws Exception {
+		// No poll snapshot, no revision recorded, or no checksum recorded
+		assertFalse(ArtifactorySCM.isUpToDate(spec, revision(latest, SHA256), null, workspace));
+		assertFalse(ArtifactorySCM.isUpToDate(spec, null, latest, workspace));
+		assertFalse(ArtifactorySCM.isUpToDate(spec, revision(latest, null), latest, workspace));
+	}
+
+	@Test
+	public void changedWorkspaceIsNotUpToDate() throws Exception {
+		FilePath timestamp = workspace.child("app").child(".app-42.zip-timestamp");
+		timestamp.touch(LAST_MODIFIED + 1000);
+		assertFalse(ArtifactorySCM.isUpToDate(spec, revision(latest, SHA256), latest, workspace));
+
+		timestamp.delete();
+		assertFalse(ArtifactorySCM.isUpToDate(spec, revision(latest, SHA256), latest, workspace));
+	}
+
+	private static ArtifactoryRevisionState.Revision revision(ArtifactoryItem item, String sha256) {
+		return new ArtifactoryRevisionState.Revision(item.toURL("artifactory.example.com", "artifactory"),
+				LAST_MODIFIED, "\"etag\"", sha256);
+	}
+}
@@ -0,0 +1,154 @@
+package hudson.plugins.scm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WorkspaceSwapTest {
+
+	/** How long to wait for the background deletion. */
+	private static final long DELETE_TIMEOUT = 10000;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void swapReplacesContents() throws Exception {
+		File workspace = tmp.newFolder("ws");
+		write(new File(workspace, "old.txt"), "old");
+		FilePath target = new FilePath(workspace);
+
+		FilePath staging = WorkspaceSwap.stage(target);
+		assertEquals(tmp.getRoot().getPath(), new File(staging.getRemote()).getParent());
+		write(new File(staging.getRemote(), "new.txt"), "new");
+		WorkspaceSwap.swap(target, staging);
+
+		assertEquals(Collections.singletonList("new.txt"), children(workspace));
+		assertEquals("new", read(new File(workspace, "new.txt")));
+		assertFalse(new File(staging.getRemote()).exists());
+		// The old tree is deleted in the background
+		assertGone(Collections.singletonList("ws"));
+	}
+
+	@Test
+	public void stageSweepsLeftovers() throws Exception {
+		File workspace = tmp.newFolder("ws");
+		write(new File(tmp.newFolder("ws" + WorkspaceSwap.STAGING + "123"), "partial.txt"), "partial");
+		write(new File(tmp.newFolder("ws" + WorkspaceSwap.TRASH + "456"), "old.txt"), "old");
+		// Another directory with a similar name is left alone
+		tmp.newFolder("other" + WorkspaceSwap.STAGING + "789");
+
+		FilePath staging = WorkspaceSwap.stage(new FilePath(workspace));
+		String name = new File(staging.getRemote()).getName();
+		assertGone(Arrays.asList("other" + WorkspaceSwap.STAGING + "789", "ws", name));
+	}
+
+	@Test
+	public void failedChildSwapRestoresTarget() throws Exception {
+		File target = tmp.newFolder("ws");
+		write(new File(target, "a.txt"), "a");
+		write(new File(target, "b.txt"), "b");
+		File staged = tmp.newFolder("staged");
+		write(new File(staged, "new.txt"), "new");
+		// Makes moving the last old child out fail, after the others were moved
+		File[] listed = target.listFiles();
+		String last = listed[listed.length - 1].getName();
+		File old = tmp.newFolder("old");
+		write(new File(old, last), "in the way");
+
+		assertThrows(FileAlreadyExistsException.class, () -> WorkspaceSwap.swapChildren(target, staged, old));
+
+		assertEquals(Arrays.asList("a.txt", "b.txt"), children(target));
+		assertEquals("a", read(new File(target, "a.txt")));
+		assertEquals("b", read(new File(target, "b.txt")));
+		assertEquals(Collections.singletonList("new.txt"), children(staged));
+		assertEquals(Collections.singletonList(last), children(old));
+		assertEquals("in the way", read(new File(old, last)));
+	}
+
+	@Test
+	public void childSwapMovesEverything() throws Exception {
+		File target = tmp.newFolder("ws");
+		write(new File(target, "a.txt"), "a");
+		File staged = tmp.newFolder("staged");
+		write(new File(staged, "new.txt"), "new");
+		File old = tmp.newFolder("old");
+
+		WorkspaceSwap.swapChildren(target, staged, old);
+
+		assertEquals(Collections.singletonList("new.txt"), children(target));
+		assertEquals(Collections.singletonList("a.txt"), children(old));
+		assertFalse(staged.exists());
+	}
+
+	@Test
+	public void mergeKeepsWhatOthersWrote() throws Exception {
+		File target = tmp.newFolder("ws");
+		write(new File(target, "other.txt"), "other");
+		write(new File(target, "bin/other.sh"), "other");
+		write(new File(target, "bin/tool.sh"), "old");
+		File staged = tmp.newFolder("staged");
+		write(new File(staged, "bin/tool.sh"), "new");
+		write(new File(staged, "lib/tool.jar"), "new");
+
+		WorkspaceSwap.merge(new FilePath(target), new FilePath(staged));
+
+		assertEquals(Arrays.asList("bin", "lib", "other.txt"), children(target));
+		assertEquals(Arrays.asList("other.sh", "tool.sh"), children(new File(target, "bin")));
+		assertEquals("new", read(new File(target, "bin/tool.sh")));
+		assertEquals("other", read(new File(target, "bin/other.sh")));
+		assertEquals("new", read(new File(target, "lib/tool.jar")));
+		assertFalse(staged.exists());
+	}
+
+	/**
+	 * Waits until the temporary folder holds only the given names.
+	 */
+	private void assertGone(List<String> remaining) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DELETE_TIMEOUT;
+		List<String> names = children(tmp.getRoot());
+		while (!names.equals(sorted(remaining)) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			names = children(tmp.getRoot());
+		}
+		assertEquals(sorted(remaining), names);
+	}
+
+	private static List<String> sorted(List<String> names) {
+		String[] array = names.toArray(new String[0]);
+		Arrays.sort(array);
+		return Arrays.asList(array);
+	}
+
+	private static List<String> children(File directory) {
+		String[] names = directory.list();
+		assertTrue(directory + " is not a directory", names != null);
+		Arrays.sort(names);
+		return Arrays.asList(names);
+	}
+
+	private static void write(File file, String content) throws IOException {
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+}